@@ -0,0 +1,473 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.imageio.ImageIO;
+
+/**
+ * A class that reduces the colors of many images without a display.  It
+ * takes a directory of images or a manifest file listing them and runs
+ * decode, computeColors, mapToColorList and encode as pipelined stages
+ * joined by bounded queues, so reading, clustering and writing of
+ * different images overlap.  Decode and encode run on their own I/O
+ * executor (virtual threads when the JVM has them) and clustering runs on
+ * a fixed pool with one thread per core.  Results of up to 256 colors
+ * travel as palette indexes and are written as indexed PNGs.  Every
+ * image is written to outputDir under its own name with the extension
+ * changed to .png, so two inputs that would get the same output name are
+ * refused before anything runs.  An image that cannot be read, clustered
+ * or written is left out and listed in the BatchResult with the reason;
+ * a VirtualMachineError such as OutOfMemoryError stops the whole batch
+ * and is thrown by run.
+ *
+ * Usage: java BatchCompressor inputDirOrManifest outputDir [colors] [threads]
+ */
+
+public class BatchCompressor {
+
+  /** file name endings read when the input is a directory */
+  private static final String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".gif", ".bmp", ".tif", ".tiff"};
+
+  /** marks the end of a queue, one is sent per worker of the next stage */
+  private static final Job END = new Job(null, null);
+
+  /** number of colors to reduce every image to */
+  private int colors;
+
+  /** where the compressed images are written */
+  private File outputDirectory;
+
+  /** number of clustering threads */
+  private int clusterThreads = Runtime.getRuntime().availableProcessors();
+
+  /** number of decode and of encode workers */
+  private int ioThreads = 4;
+
+  /** images that may wait between two stages */
+  private int queueCapacity = 4;
+
+  /** palettes computed before, null to always cluster */
+  private PaletteCache paletteCache = null;
+
+  /** listener added to the k-means of every image, or null */
+  private KMeansListener listener = null;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the number of colors and the output directory
+   * @param colors number of colors to reduce every image to
+   * @param outputDirectory where the compressed images are written
+   */
+  public BatchCompressor(int colors, File outputDirectory) {
+    if (colors < 1) {
+      throw new IllegalArgumentException("colors must be at least 1: " + colors);
+    }
+    this.colors = colors;
+    this.outputDirectory = outputDirectory;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to set the number of clustering threads
+   * @param clusterThreads the number of threads, one per core by default
+   */
+  public void setClusterThreads(int clusterThreads) {
+    if (clusterThreads < 1) {
+      throw new IllegalArgumentException("cluster threads must be at least 1: " + clusterThreads);
+    }
+    this.clusterThreads = clusterThreads;
+  }
+
+  /**
+   * Method to set the number of decode workers and of encode workers
+   * @param ioThreads the number of workers for each I/O stage
+   */
+  public void setIoThreads(int ioThreads) {
+    if (ioThreads < 1) {
+      throw new IllegalArgumentException("I/O threads must be at least 1: " + ioThreads);
+    }
+    this.ioThreads = ioThreads;
+  }
+
+  /**
+   * Method to set how many images may wait between two stages, which
+   * bounds the memory used by decoded images
+   * @param queueCapacity the capacity of each queue
+   */
+  public void setQueueCapacity(int queueCapacity) {
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("queue capacity must be at least 1: " + queueCapacity);
+    }
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Method to set a cache of palettes, so an image seen before skips
+   * clustering and only gets mapped
+   * @param paletteCache the cache, null to always cluster
+   */
+  public void setPaletteCache(PaletteCache paletteCache) {
+    this.paletteCache = paletteCache;
+  }
+
+  /**
+   * Method to set a listener that is added to the k-means of every
+   * image.  The images are clustered at the same time, so it must be
+   * thread safe, as KMeansMetrics is.
+   * @param listener the listener, null for none
+   */
+  public void setListener(KMeansListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Method to compress a list of images
+   * @param inputs the images to compress
+   * @return the number of images written and the images that failed
+   * @throws IllegalArgumentException if two inputs would be written to
+   *   the same output file
+   * @throws InterruptedException if the calling thread is interrupted
+   */
+  public BatchResult run(List<File> inputs) throws InterruptedException {
+    BlockingQueue<Job> files = new LinkedBlockingQueue<Job>();
+    // names are compared ignoring case, which is how some file systems
+    // compare them
+    Map<String, File> outputs = new HashMap<String, File>();
+    for (File input : inputs) {
+      File output = outputFile(input);
+      File other = outputs.put(output.getName().toLowerCase(Locale.ROOT), input);
+      if (other != null) {
+        throw new IllegalArgumentException(other + " and " + input + " would both be written to " + output);
+      }
+      files.add(new Job(input, output));
+    }
+    outputDirectory.mkdirs();
+    BlockingQueue<Job> decoded = new ArrayBlockingQueue<Job>(queueCapacity);
+    BlockingQueue<Job> clustered = new ArrayBlockingQueue<Job>(queueCapacity);
+    AtomicInteger written = new AtomicInteger();
+    Map<File, Throwable> failures = Collections.synchronizedMap(new LinkedHashMap<File, Throwable>());
+
+    ExecutorService decoders = newIoExecutor();
+    ExecutorService clusterers = Executors.newFixedThreadPool(clusterThreads);
+    ExecutorService encoders = newIoExecutor();
+    Stage stage = new Stage(failures, decoders, clusterers, encoders);
+    try {
+      List<Future<?>> workers = new ArrayList<Future<?>>();
+      workers.addAll(stage.start(decoders, ioThreads, files, decoded, clusterThreads, job -> decode(job)));
+      workers.addAll(stage.start(clusterers, clusterThreads, decoded, clustered, ioThreads,
+                                 job -> cluster(job)));
+      workers.addAll(stage.start(encoders, ioThreads, clustered, null, 0, job -> {
+        encode(job);
+        written.incrementAndGet();
+      }));
+      // the files are all queued, so the first stage can be closed now;
+      // the last worker of each stage closes the queue of the next one
+      for (int i = 0; i < ioThreads; i++) {
+        files.add(END);
+      }
+      stage.await(workers);
+    } finally {
+      decoders.shutdownNow();
+      clusterers.shutdownNow();
+      encoders.shutdownNow();
+    }
+    return new BatchResult(written.get(), failures);
+  }
+
+  /**
+   * Method to get the file an image is written to
+   * @param input the image
+   * @return the file in the output directory with the image's name and
+   *   the extension .png
+   */
+  private File outputFile(File input) {
+    String name = input.getName();
+    int dot = name.lastIndexOf('.');
+    return new File(outputDirectory, (dot < 0 ? name : name.substring(0, dot)) + ".png");
+  }
+
+  /**
+   * Method to read an image into packed pixels
+   * @param job the job, its pixels are filled in
+   */
+  private void decode(Job job) throws IOException {
+    BufferedImage image = ImageIO.read(job.input);
+    if (image == null) {
+      throw new IOException("not an image");
+    }
+    Picture picture = new Picture(image);
+    job.width = picture.getWidth();
+    job.height = picture.getHeight();
+    job.pixels = picture.getPackedPixels();
+  }
+
+  /**
+   * Method to compute the palette of an image and map its pixels to it
+   * @param job the job, its pixels are replaced by the mapped ones
+   */
+  private void cluster(Job job) {
+    // images are clustered side by side, so each one gets a single thread
+    KMeans kmeans = new KMeans(colors);
+    kmeans.setParallelism(1);
+    kmeans.setHistogram(true);
+    if (listener != null) {
+      kmeans.addListener(listener);
+    }
+    int[] palette = paletteCache == null ? kmeans.computePalette(job.pixels)
+      : paletteCache.computePalette(job.pixels, job.width, job.height, kmeans);
+    if (palette.length <= IndexedImage.MAX_COLORS) {
+      job.indexed = IndexedImage.of(job.pixels, job.width, job.height, palette);
+      job.pixels = null;
+    } else {
+      KMeans.map(job.pixels, palette, job.pixels);
+    }
+  }
+
+  /**
+   * Method to write a clustered image as PNG, indexed when it can be
+   * @param job the job to write
+   */
+  private void encode(Job job) throws IOException {
+    if (job.indexed != null) {
+      job.indexed.write(job.output);
+      return;
+    }
+    BufferedImage image = new BufferedImage(job.width, job.height, BufferedImage.TYPE_INT_RGB);
+    image.setRGB(0, 0, job.width, job.height, job.pixels, 0, job.width);
+    if (!ImageIO.write(image, "png", job.output)) {
+      throw new IOException("no PNG writer");
+    }
+  }
+
+  /**
+   * Method to make an executor for blocking I/O.  Virtual threads are used
+   * when the JVM has them, otherwise a cached pool of platform threads.
+   * @return the executor
+   */
+  private static ExecutorService newIoExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException ex) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  /**
+   * Class method to list the images to compress
+   * @param source a directory of images, or a manifest file with one path
+   *   per line (blank lines and lines starting with # are skipped,
+   *   relative paths are relative to the manifest)
+   * @return the images
+   * @throws IOException if the directory cannot be listed or the manifest
+   *   cannot be read
+   */
+  public static List<File> listInputs(File source) throws IOException {
+    List<File> inputs = new ArrayList<File>();
+    if (source.isDirectory()) {
+      File[] files = source.listFiles();
+      if (files == null) {
+        throw new IOException("cannot list the directory " + source);
+      }
+      Arrays.sort(files);
+      for (File file : files) {
+        String name = file.getName().toLowerCase();
+        for (String extension : EXTENSIONS) {
+          if (file.isFile() && name.endsWith(extension)) {
+            inputs.add(file);
+            break;
+          }
+        }
+      }
+      return inputs;
+    }
+    try (BufferedReader reader = new BufferedReader(new FileReader(source))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        File file = new File(line);
+        inputs.add(file.isAbsolute() ? file : new File(source.getAbsoluteFile().getParentFile(), line));
+      }
+    }
+    return inputs;
+  }
+
+  /**
+   * Main method to compress a directory or manifest of images headlessly.
+   * Identical images in the batch are only clustered once.
+   * @param args input directory or manifest, output directory, and
+   *   optionally the number of colors (256) and of clustering threads
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("usage: java BatchCompressor inputDirOrManifest outputDir [colors] [threads]");
+      System.exit(2);
+    }
+    System.setProperty("java.awt.headless", "true");
+    List<File> inputs = listInputs(new File(args[0]));
+    BatchCompressor compressor = new BatchCompressor(
+      args.length > 2 ? Integer.parseInt(args[2]) : 256, new File(args[1]));
+    if (args.length > 3) {
+      compressor.setClusterThreads(Integer.parseInt(args[3]));
+    }
+    PaletteCache cache = new PaletteCache(1024, 16 << 20);
+    compressor.setPaletteCache(cache);
+    KMeansMetrics metrics = new KMeansMetrics();
+    compressor.setListener(metrics);
+
+    long start = System.nanoTime();
+    BatchResult result = compressor.run(inputs);
+    int written = result.getWritten();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    for (Map.Entry<File, Throwable> failure : result.getFailures().entrySet()) {
+      System.err.println("skipped " + failure.getKey() + ": " + failure.getValue());
+    }
+    System.err.printf("compressed %d of %d images in %.2f s (%.2f images/s)%n",
+                      written, inputs.size(), seconds, written / seconds);
+    System.err.printf("palette cache: %d hits, %d disk hits, %d misses, %d evictions%n",
+                      cache.getHits(), cache.getDiskHits(), cache.getMisses(), cache.getEvictions());
+    System.err.printf("k-means: %d runs, %d iterations, assignment %.2f s, update %.2f s%n",
+                      metrics.getRuns(), metrics.getIterations(),
+                      metrics.getAssignmentNanos() / 1e9, metrics.getUpdateNanos() / 1e9);
+  }
+
+  /**
+   * What the stages of one run share: where failed images are recorded,
+   * and the executors to stop when a worker hits a VirtualMachineError
+   */
+  private static class Stage {
+    final Map<File, Throwable> failures;
+    final ExecutorService[] executors;
+
+    /** the VirtualMachineError that stopped the run, or null */
+    final AtomicReference<VirtualMachineError> fatal = new AtomicReference<VirtualMachineError>();
+
+    Stage(Map<File, Throwable> failures, ExecutorService... executors) {
+      this.failures = failures;
+      this.executors = executors;
+    }
+
+    /**
+     * Method to start the workers of a stage.  Each worker takes jobs
+     * from its queue until it gets END, and a job that fails is recorded
+     * and dropped so the rest of the batch goes on.  The last worker to
+     * get END passes one END per worker on to the next stage.  A
+     * VirtualMachineError stops every stage instead, since a worker that
+     * just ended would leave the stage before it blocked on a full queue.
+     * @param executor the executor to run the workers on
+     * @param workers number of workers
+     * @param in queue to take jobs from
+     * @param out queue to pass finished jobs to, or null for the last stage
+     * @param nextWorkers number of workers of the next stage
+     * @param step the work done on each job
+     * @return the futures of the workers
+     */
+    List<Future<?>> start(ExecutorService executor, int workers, BlockingQueue<Job> in,
+                          BlockingQueue<Job> out, int nextWorkers, Step step) {
+      AtomicInteger running = new AtomicInteger(workers);
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int i = 0; i < workers; i++) {
+        futures.add(executor.submit(() -> {
+          try {
+            while (true) {
+              Job job = in.take();
+              if (job == END) {
+                break;
+              }
+              try {
+                step.run(job);
+              } catch (VirtualMachineError ex) {
+                throw ex;
+              } catch (Throwable ex) {
+                failures.put(job.input, ex);
+                continue;
+              }
+              if (out != null) {
+                out.put(job);
+              }
+            }
+            if (running.decrementAndGet() == 0 && out != null) {
+              for (int w = 0; w < nextWorkers; w++) {
+                out.put(END);
+              }
+            }
+            return null;
+          } catch (VirtualMachineError ex) {
+            fatal.compareAndSet(null, ex);
+            for (ExecutorService other : executors) {
+              other.shutdownNow();
+            }
+            throw ex;
+          }
+        }));
+      }
+      return futures;
+    }
+
+    /**
+     * Method to wait for every worker
+     * @param futures the futures of the workers
+     * @throws VirtualMachineError if a worker hit one
+     */
+    void await(List<Future<?>> futures) throws InterruptedException {
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException ex) {
+          if (fatal.get() == null) {
+            throw new IllegalStateException("pipeline worker failed", ex.getCause());
+          }
+        }
+      }
+      if (fatal.get() != null) {
+        throw fatal.get();
+      }
+    }
+  }
+
+  /**
+   * The work done on a job by one stage
+   */
+  private interface Step {
+    void run(Job job) throws Exception;
+  }
+
+  /**
+   * One image moving through the pipeline
+   */
+  private static class Job {
+    final File input;
+    final File output;
+    int width;
+    int height;
+    int[] pixels;
+    IndexedImage indexed;
+
+    Job(File input, File output) {
+      this.input = input;
+      this.output = output;
+    }
+  }
+}
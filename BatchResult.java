@@ -0,0 +1,64 @@
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A class that holds the outcome of a BatchCompressor run: how many
+ * images were written and why each of the others was not.
+ */
+
+public class BatchResult {
+
+  /** number of images written */
+  private final int written;
+
+  /** the images that failed, in the order they failed, with the reason */
+  private final Map<File, Throwable> failures;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the outcome of a run
+   * @param written number of images written
+   * @param failures the images that failed with the reason, not copied
+   */
+  public BatchResult(int written, Map<File, Throwable> failures) {
+    this.written = written;
+    this.failures = failures;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to get the number of images written
+   * @return the images written
+   */
+  public int getWritten() {
+    return written;
+  }
+
+  /**
+   * Method to get the images that could not be compressed
+   * @return each failed input with what went wrong, in the order they
+   *   failed
+   */
+  public Map<File, Throwable> getFailures() {
+    return Collections.unmodifiableMap(failures);
+  }
+
+  /**
+   * Method to tell if every image was written
+   * @return true if no image failed
+   */
+  public boolean isComplete() {
+    return failures.isEmpty();
+  }
+
+  /**
+   * Method to describe the result
+   * @return the images written and failed
+   */
+  public String toString() {
+    return "BatchResult[written=" + written + ", failed=" + failures.size() + "]";
+  }
+}
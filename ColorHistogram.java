@@ -0,0 +1,185 @@
+import java.util.Arrays;
+
+/**
+ * A class that counts how many pixels have each packed 0xRRGGBB color.
+ * The counts live in a primitive open-addressing hash table, so building
+ * the histogram of a whole image allocates nothing per pixel.  Colors are
+ * kept in the order they were first seen, which is scan order when the
+ * histogram is built from a picture.
+ */
+
+public class ColorHistogram {
+
+  /** marks an empty slot in the hash table, not a valid 24-bit color */
+  private static final int EMPTY = -1;
+
+  /** hash table of colors, EMPTY when the slot is free */
+  private int[] keys;
+
+  /** for each used slot, the position of the color in colors/counts */
+  private int[] slots;
+
+  /** distinct colors in the order they were first added */
+  private int[] colors;
+
+  /** number of pixels of each color in colors */
+  private int[] counts;
+
+  /** number of distinct colors */
+  private int size = 0;
+
+  /** total of all counts */
+  private long total = 0;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that makes an empty histogram
+   */
+  public ColorHistogram() {
+    this(256);
+  }
+
+  /**
+   * Constructor that makes an empty histogram sized for a number of colors
+   * @param expected the number of distinct colors expected
+   */
+  public ColorHistogram(int expected) {
+    int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+    keys = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    slots = new int[capacity];
+    colors = new int[Math.max(16, expected)];
+    counts = new int[colors.length];
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Class method to count the colors of packed pixels in one pass
+   * @param pixels packed 0xRRGGBB pixels
+   * @return the histogram of the pixels
+   */
+  public static ColorHistogram of(int[] pixels) {
+    ColorHistogram histogram = new ColorHistogram();
+    for (int rgb : pixels) {
+      histogram.add(rgb, 1);
+    }
+    return histogram;
+  }
+
+  /**
+   * Method to add pixels of a color
+   * @param rgb packed 0xRRGGBB color
+   * @param count how many pixels have that color
+   */
+  public void add(int rgb, int count) {
+    rgb &= 0xFFFFFF;
+    int mask = keys.length - 1;
+    int slot = hash(rgb) & mask;
+
+    while (keys[slot] != EMPTY) {
+      if (keys[slot] == rgb) {
+        counts[slots[slot]] += count;
+        total += count;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    if (size == colors.length) {
+      colors = Arrays.copyOf(colors, size * 2);
+      counts = Arrays.copyOf(counts, size * 2);
+    }
+    keys[slot] = rgb;
+    slots[slot] = size;
+    colors[size] = rgb;
+    counts[size] = count;
+    size++;
+    total += count;
+
+    // keep the table at most half full
+    if (size * 2 > keys.length) {
+      rehash(keys.length * 2);
+    }
+  }
+
+  /**
+   * Method to get the number of pixels of a color
+   * @param rgb packed 0xRRGGBB color
+   * @return the count, 0 if the color was never added
+   */
+  public int count(int rgb) {
+    rgb &= 0xFFFFFF;
+    int mask = keys.length - 1;
+    int slot = hash(rgb) & mask;
+    while (keys[slot] != EMPTY) {
+      if (keys[slot] == rgb) {
+        return counts[slots[slot]];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return 0;
+  }
+
+  /**
+   * Method to get the number of distinct colors
+   * @return the number of distinct colors
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Method to get the total number of pixels counted
+   * @return the sum of all the counts
+   */
+  public long getTotal() {
+    return total;
+  }
+
+  /**
+   * Method to get the distinct colors in the order they were first added
+   * @return a copy of the packed colors
+   */
+  public int[] getColors() {
+    return Arrays.copyOf(colors, size);
+  }
+
+  /**
+   * Method to get the counts, in the same order as getColors
+   * @return a copy of the counts
+   */
+  public int[] getCounts() {
+    return Arrays.copyOf(counts, size);
+  }
+
+  /**
+   * Method to grow the hash table
+   * @param capacity the new power of two capacity
+   */
+  private void rehash(int capacity) {
+    keys = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    slots = new int[capacity];
+    int mask = capacity - 1;
+    for (int i = 0; i < size; i++) {
+      int slot = hash(colors[i]) & mask;
+      while (keys[slot] != EMPTY) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = colors[i];
+      slots[slot] = i;
+    }
+  }
+
+  /**
+   * Method to spread the bits of a color over the table
+   * @param rgb packed color
+   * @return the mixed hash
+   */
+  private static int hash(int rgb) {
+    int h = rgb * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,168 @@
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+
+/**
+ * A class that copies one picture onto another a row span at a time, for
+ * compose, chromakey and blueScreen.  The part of the source that lands
+ * inside the target is worked out once, then each row of it is copied in
+ * one go, straight between the images' int arrays when both keep their
+ * pixels that way and through one getRGB/setRGB per band of rows when
+ * not.  Bands of rows are done on the common pool.
+ *
+ * Like Pixel.setColor, a copied pixel takes the red, green and blue of
+ * the source and keeps the alpha of the target.
+ */
+
+public class Compositor {
+
+  /** copy every pixel */
+  private static final int ALL = 0;
+
+  /** copy pixels farther than the threshold from the key color */
+  private static final int CHROMA = 1;
+
+  /** copy pixels whose red plus green is more than their blue */
+  private static final int BLUE = 2;
+
+  ///////////////////// constructors ////////////////////////
+
+  private Compositor() {
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Class method to copy a picture onto a target
+   * @param source the picture to copy
+   * @param target the picture copied onto
+   * @param targetX where the left of the source goes in the target
+   * @param targetY where the top of the source goes in the target
+   */
+  public static void compose(Picture source, Picture target, int targetX, int targetY) {
+    copy(source, target, targetX, targetY, ALL, 0, 0);
+  }
+
+  /**
+   * Class method to copy the pixels of a picture that are not within a
+   * distance of a background color onto a target
+   * @param source the picture to copy
+   * @param target the picture copied onto
+   * @param bgColor the color to make transparent
+   * @param threshold pixels within this distance of bgColor are not copied
+   * @param targetX where the left of the source goes in the target
+   * @param targetY where the top of the source goes in the target
+   */
+  public static void chromakey(Picture source, Picture target, Color bgColor, int threshold,
+                               int targetX, int targetY) {
+    // distance > threshold is distance squared > threshold squared, and a
+    // negative threshold keeps every pixel; no two colors are farther apart
+    // than 3 * 255 * 255, so larger limits are all the same
+    int limit = threshold < 0 ? -1 : (int) Math.min((long) threshold * threshold, 3 * 255 * 255);
+    copy(source, target, targetX, targetY, CHROMA, bgColor.getRGB() & 0xFFFFFF, limit);
+  }
+
+  /**
+   * Class method to copy the pixels of a picture that are not mostly blue
+   * (red plus green more than blue) onto a target
+   * @param source the picture to copy
+   * @param target the picture copied onto
+   * @param targetX where the left of the source goes in the target
+   * @param targetY where the top of the source goes in the target
+   */
+  public static void blueScreen(Picture source, Picture target, int targetX, int targetY) {
+    copy(source, target, targetX, targetY, BLUE, 0, 0);
+  }
+
+  /**
+   * Class method to copy the part of the source that lands in the target
+   * @param source the picture to copy
+   * @param target the picture copied onto
+   * @param targetX where the left of the source goes in the target
+   * @param targetY where the top of the source goes in the target
+   * @param mode ALL, CHROMA or BLUE
+   * @param key the packed 0xRRGGBB key color for CHROMA
+   * @param limit the squared distance a CHROMA pixel must exceed
+   */
+  private static void copy(Picture source, Picture target, int targetX, int targetY,
+                           int mode, int key, int limit) {
+    BufferedImage from = source.getBufferedImage();
+    BufferedImage to = target.getBufferedImage();
+    // the source rectangle that lands inside the target
+    int left = Math.max(0, -targetX);
+    int top = Math.max(0, -targetY);
+    int right = (int) Math.min(from.getWidth(), (long) to.getWidth() - targetX);
+    int bottom = (int) Math.min(from.getHeight(), (long) to.getHeight() - targetY);
+    if (right <= left || bottom <= top) {
+      return;
+    }
+    int span = right - left;
+    int sourceWidth = from.getWidth();
+    int targetWidth = to.getWidth();
+
+    int[] sourcePixels = PixelChain.directPixels(from);
+    int[] targetPixels = PixelChain.directPixels(to);
+    if (sourcePixels != null && targetPixels != null && from != to) {
+      RowBands.forEach(bottom - top, span, true, (first, last) -> {
+        for (int y = top + first; y < top + last; y++) {
+          copySpan(sourcePixels, y * sourceWidth + left,
+                   targetPixels, (y + targetY) * targetWidth + left + targetX, span, mode, key, limit);
+        }
+      });
+      return;
+    }
+
+    // otherwise read the source up front, which also makes copying a
+    // picture onto itself safe, and move the target a band at a time
+    int[] rows = from.getRGB(left, top, span, bottom - top, null, 0, span);
+    RowBands.forEach(bottom - top, span, true, (first, last) -> {
+      int count = last - first;
+      int x = left + targetX;
+      int y = top + first + targetY;
+      int[] band = to.getRGB(x, y, span, count, null, 0, span);
+      for (int r = 0; r < count; r++) {
+        copySpan(rows, (first + r) * span, band, r * span, span, mode, key, limit);
+      }
+      to.setRGB(x, y, span, count, band, 0, span);
+    });
+  }
+
+  /**
+   * Class method to copy one row span
+   * @param from the source pixels
+   * @param fromIndex where the span starts in the source
+   * @param to the target pixels
+   * @param toIndex where the span starts in the target
+   * @param length pixels in the span
+   * @param mode ALL, CHROMA or BLUE
+   * @param key the packed 0xRRGGBB key color for CHROMA
+   * @param limit the squared distance a CHROMA pixel must exceed
+   */
+  private static void copySpan(int[] from, int fromIndex, int[] to, int toIndex, int length,
+                               int mode, int key, int limit) {
+    if (mode == ALL) {
+      for (int i = 0; i < length; i++) {
+        to[toIndex + i] = (to[toIndex + i] & 0xFF000000) | (from[fromIndex + i] & 0xFFFFFF);
+      }
+    } else if (mode == CHROMA) {
+      int keyRed = (key >> 16) & 0xFF;
+      int keyGreen = (key >> 8) & 0xFF;
+      int keyBlue = key & 0xFF;
+      for (int i = 0; i < length; i++) {
+        int rgb = from[fromIndex + i];
+        int dr = ((rgb >> 16) & 0xFF) - keyRed;
+        int dg = ((rgb >> 8) & 0xFF) - keyGreen;
+        int db = (rgb & 0xFF) - keyBlue;
+        int old = to[toIndex + i];
+        to[toIndex + i] = dr * dr + dg * dg + db * db > limit
+          ? (old & 0xFF000000) | (rgb & 0xFFFFFF) : old;
+      }
+    } else {
+      for (int i = 0; i < length; i++) {
+        int rgb = from[fromIndex + i];
+        int old = to[toIndex + i];
+        to[toIndex + i] = ((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) > (rgb & 0xFF)
+          ? (old & 0xFF000000) | (rgb & 0xFFFFFF) : old;
+      }
+    }
+  }
+}
@@ -0,0 +1,65 @@
+import java.io.PrintStream;
+
+/**
+ * A KMeansListener that prints the progress of a k-means run, one line
+ * per iteration.  This is the console output computeColors used to
+ * always print, now only printed when the listener is added.
+ */
+
+public class ConsoleListener implements KMeansListener {
+
+  /** where the lines are printed */
+  private final PrintStream out;
+
+  /** whether the whole palette is printed with every iteration */
+  private final boolean palettes;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that prints the statistics to standard output
+   */
+  public ConsoleListener() {
+    this(System.out, false);
+  }
+
+  /**
+   * Constructor that takes where to print and whether to print palettes
+   * @param out where the lines are printed
+   * @param palettes true to also print the palette of every iteration as
+   *   a color list, which is slow for large palettes
+   */
+  public ConsoleListener(PrintStream out, boolean palettes) {
+    this.out = out;
+    this.palettes = palettes;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to print one iteration
+   * @param iteration what the iteration did
+   */
+  public void iterationDone(Iteration iteration) {
+    out.printf("iteration %d: inertia %d, changed %d, empty %d, drift max %.2f mean %.2f, %.2f ms%n",
+               iteration.getNumber(), iteration.getInertia(), iteration.getChangedPixels(),
+               iteration.getEmptyClusters(), iteration.getMaxDrift(), iteration.getMeanDrift(),
+               iteration.getNanos() / 1e6);
+    if (palettes) {
+      out.println("colorlistfinal " + Picture.toColorList(iteration.getPalette()));
+    }
+  }
+
+  /**
+   * Method to print the totals of a run
+   * @param run totals for the run
+   */
+  public void runDone(Run run) {
+    out.printf("%s after %d iterations: seeding %.2f ms, assignment %.2f ms, update %.2f ms%n",
+               run.getStopReason(), run.getIterations(), run.getSeedingNanos() / 1e6,
+               run.getAssignmentNanos() / 1e6, run.getUpdateNanos() / 1e6);
+    if (palettes) {
+      out.println("CONVERGENCE FINAL " + Picture.toColorList(run.getPalette()));
+    }
+  }
+}
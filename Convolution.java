@@ -0,0 +1,440 @@
+import java.util.Arrays;
+
+/**
+ * A class that convolves packed 0xRRGGBB images with a kernel of any
+ * size.  Rows are processed in parallel bands, and each band keeps a
+ * rolling window of as many rows as the kernel is tall: source rows
+ * unpacked into float rows, one per channel, with the border filled in
+ * by the edge mode, so the inner loops run over plain arrays with no
+ * bounds tests.  Moving down a row unpacks one more row into the slot of
+ * the one that left, so the memory used depends on the width and the
+ * kernel, not the height.  A kernel that is the outer product of a
+ * column and a row (box, Gaussian, Sobel) is detected and run as a
+ * horizontal then a vertical pass, the window then holding rows already
+ * filtered across, which costs rows + columns multiplies per pixel
+ * instead of rows * columns (from 5x5 up, below that the single pass is
+ * faster).
+ *
+ * Results are rounded to the nearest integer and clamped to 0-255, so a
+ * normalized kernel leaves a flat image as it is.
+ */
+
+public class Convolution {
+
+  /** how pixels beyond the edge of the image are made up */
+  public enum EdgeMode {
+    /** repeat the edge pixel: aaa|abcd|ddd */
+    CLAMP,
+    /** mirror the image at the edge: cba|abcd|dcb */
+    REFLECT,
+    /** continue from the opposite edge: bcd|abcd|abc */
+    WRAP
+  }
+
+  /** largest relative error allowed when factoring a separable kernel */
+  private static final float SEPARABLE_EPSILON = 1e-6f;
+
+  /** the kernel, row by row */
+  private final float[][] kernel;
+
+  /** kernel rows and columns */
+  private final int rows;
+  private final int columns;
+
+  /** the column and row factors of the kernel, null if it is not separable */
+  private final float[] columnKernel;
+  private final float[] rowKernel;
+
+  /** how the border is filled in */
+  private EdgeMode edgeMode = EdgeMode.CLAMP;
+
+  /** whether rows are processed on the common pool */
+  private boolean parallel = true;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the kernel.  The kernel is centered on the
+   * pixel at row rows/2 and column columns/2.
+   * @param kernel the weights, kernel[row][column], all rows the same length
+   */
+  public Convolution(float[][] kernel) {
+    if (kernel.length == 0 || kernel[0].length == 0) {
+      throw new IllegalArgumentException("kernel must not be empty");
+    }
+    rows = kernel.length;
+    columns = kernel[0].length;
+    this.kernel = new float[rows][];
+    for (int r = 0; r < rows; r++) {
+      if (kernel[r].length != columns) {
+        throw new IllegalArgumentException("kernel rows must all have " + columns + " weights");
+      }
+      this.kernel[r] = kernel[r].clone();
+    }
+
+    float[][] factors = factor(this.kernel);
+    columnKernel = factors == null ? null : factors[0];
+    rowKernel = factors == null ? null : factors[1];
+  }
+
+  /**
+   * Constructor for a separable kernel given by its factors, the kernel
+   * being column[r] * row[c]
+   * @param column the vertical factor
+   * @param row the horizontal factor
+   */
+  public Convolution(float[] column, float[] row) {
+    this(outer(column, row));
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Class method to make a normalized box blur kernel
+   * @param radius pixels on each side of the center
+   * @return a Convolution averaging (2 * radius + 1) squared pixels
+   */
+  public static Convolution box(int radius) {
+    float[] factor = new float[2 * radius + 1];
+    Arrays.fill(factor, 1f / factor.length);
+    return new Convolution(factor, factor);
+  }
+
+  /**
+   * Class method to make a normalized Gaussian blur kernel, cut off at
+   * three standard deviations
+   * @param sigma the standard deviation in pixels
+   * @return the Convolution
+   */
+  public static Convolution gaussian(double sigma) {
+    int radius = Math.max(1, (int) Math.ceil(3 * sigma));
+    float[] factor = new float[2 * radius + 1];
+    double total = 0;
+    for (int i = -radius; i <= radius; i++) {
+      total += Math.exp(-i * i / (2 * sigma * sigma));
+    }
+    for (int i = -radius; i <= radius; i++) {
+      factor[i + radius] = (float) (Math.exp(-i * i / (2 * sigma * sigma)) / total);
+    }
+    return new Convolution(factor, factor);
+  }
+
+  /**
+   * Method to tell if the kernel runs as two one-dimensional passes
+   * @return true if the kernel is separable
+   */
+  public boolean isSeparable() {
+    return rowKernel != null;
+  }
+
+  /**
+   * Method to get how pixels beyond the edge are made up
+   * @return the edge mode, CLAMP by default
+   */
+  public EdgeMode getEdgeMode() {
+    return edgeMode;
+  }
+
+  /**
+   * Method to set how pixels beyond the edge are made up
+   * @param edgeMode CLAMP, REFLECT or WRAP
+   */
+  public void setEdgeMode(EdgeMode edgeMode) {
+    if (edgeMode == null) {
+      throw new IllegalArgumentException("edge mode must not be null");
+    }
+    this.edgeMode = edgeMode;
+  }
+
+  /**
+   * Method to choose whether rows are processed in parallel
+   * @param parallel false to run on the calling thread only
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  /**
+   * Method to convolve a picture
+   * @param source the picture to convolve
+   * @return a new picture of the same size
+   */
+  public Picture apply(Picture source) {
+    int width = source.getWidth();
+    int height = source.getHeight();
+    Picture target = new Picture(width, height);
+    target.setPackedPixels(apply(source.getPackedPixels(), width, height));
+    return target;
+  }
+
+  /**
+   * Method to convolve packed pixels
+   * @param pixels packed 0xRRGGBB pixels in row-major order
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @return new packed 0xRRGGBB pixels
+   */
+  public int[] apply(int[] pixels, int width, int height) {
+    if (pixels.length != width * height) {
+      throw new IllegalArgumentException("expected " + (width * height) + " pixels but got " + pixels.length);
+    }
+    int[] result = new int[pixels.length];
+    if (pixels.length == 0) {
+      return result;
+    }
+    // source column of every column of a padded row
+    int[] columnMap = new int[width + columns - 1];
+    for (int x = 0; x < columnMap.length; x++) {
+      columnMap[x] = edge(x - columns / 2, width);
+    }
+    // two passes pay for their extra row once they save enough multiplies
+    boolean twoPass = rowKernel != null && rows * columns > 2 * (rows + columns);
+    // every band fills its window with rows - 1 rows above its first row,
+    // so bands are kept at least four kernels tall to bound that overlap
+    int bandWidth = Math.max(1, Math.min(width, RowBands.BAND_PIXELS / (4 * rows)));
+    RowBands.forEach(height, bandWidth, parallel, (from, to) -> {
+      if (twoPass) {
+        separable(pixels, width, height, columnMap, from, to, result);
+      } else {
+        full(pixels, width, height, columnMap, from, to, result);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Method to run the full two-dimensional kernel over a band of rows
+   * @param pixels packed 0xRRGGBB pixels
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @param columnMap the source column of every padded column
+   * @param from first row of the band
+   * @param to one past the last row of the band
+   * @param result where the packed pixels are written
+   */
+  private void full(int[] pixels, int width, int height, int[] columnMap, int from, int to,
+                    int[] result) {
+    int stride = columnMap.length;
+    // padded row y of the image is kept in slot y % rows
+    float[] red = new float[rows * stride];
+    float[] green = new float[red.length];
+    float[] blue = new float[red.length];
+    float[] r = new float[width];
+    float[] g = new float[width];
+    float[] b = new float[width];
+    for (int y = from; y < from + rows - 1; y++) {
+      unpack(pixels, width, height, y, columnMap, red, green, blue, (y % rows) * stride);
+    }
+    for (int y = from; y < to; y++) {
+      int newest = y + rows - 1;
+      unpack(pixels, width, height, newest, columnMap, red, green, blue, (newest % rows) * stride);
+      Arrays.fill(r, 0);
+      Arrays.fill(g, 0);
+      Arrays.fill(b, 0);
+      // weights are added in kernel order, row by row
+      for (int ky = 0; ky < rows; ky++) {
+        int row = ((y + ky) % rows) * stride;
+        for (int kx = 0; kx < columns; kx++) {
+          float weight = kernel[ky][kx];
+          int start = row + kx;
+          for (int x = 0; x < width; x++) {
+            r[x] += red[start + x] * weight;
+            g[x] += green[start + x] * weight;
+            b[x] += blue[start + x] * weight;
+          }
+        }
+      }
+      pack(r, g, b, result, y * width);
+    }
+  }
+
+  /**
+   * Method to run the kernel as a horizontal then a vertical pass over a
+   * band of rows
+   * @param pixels packed 0xRRGGBB pixels
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @param columnMap the source column of every padded column
+   * @param from first row of the band
+   * @param to one past the last row of the band
+   * @param result where the packed pixels are written
+   */
+  private void separable(int[] pixels, int width, int height, int[] columnMap, int from, int to,
+                         int[] result) {
+    int stride = columnMap.length;
+    // one padded source row, before the horizontal pass
+    float[] lineRed = new float[stride];
+    float[] lineGreen = new float[stride];
+    float[] lineBlue = new float[stride];
+    // padded row y after the horizontal pass is kept in slot y % rows
+    float[] red = new float[rows * width];
+    float[] green = new float[red.length];
+    float[] blue = new float[red.length];
+    float[] r = new float[width];
+    float[] g = new float[width];
+    float[] b = new float[width];
+    for (int y = from; y < to + rows - 1; y++) {
+      // horizontal pass of the row entering the window
+      unpack(pixels, width, height, y, columnMap, lineRed, lineGreen, lineBlue, 0);
+      int out = (y % rows) * width;
+      Arrays.fill(red, out, out + width, 0);
+      Arrays.fill(green, out, out + width, 0);
+      Arrays.fill(blue, out, out + width, 0);
+      for (int kx = 0; kx < columns; kx++) {
+        float weight = rowKernel[kx];
+        for (int x = 0; x < width; x++) {
+          red[out + x] += lineRed[kx + x] * weight;
+          green[out + x] += lineGreen[kx + x] * weight;
+          blue[out + x] += lineBlue[kx + x] * weight;
+        }
+      }
+      int top = y - rows + 1;
+      if (top < from) {
+        continue;
+      }
+
+      // vertical pass down the window for output row top
+      Arrays.fill(r, 0);
+      Arrays.fill(g, 0);
+      Arrays.fill(b, 0);
+      for (int ky = 0; ky < rows; ky++) {
+        float weight = columnKernel[ky];
+        int start = ((top + ky) % rows) * width;
+        for (int x = 0; x < width; x++) {
+          r[x] += red[start + x] * weight;
+          g[x] += green[start + x] * weight;
+          b[x] += blue[start + x] * weight;
+        }
+      }
+      pack(r, g, b, result, top * width);
+    }
+  }
+
+  /**
+   * Method to unpack a row of the padded image into float rows
+   * @param pixels packed 0xRRGGBB pixels
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @param y the padded row, rows / 2 below the image row it shows
+   * @param columnMap the source column of every padded column
+   * @param red where the red values go
+   * @param green where the green values go
+   * @param blue where the blue values go
+   * @param offset where the row starts in red, green and blue
+   */
+  private void unpack(int[] pixels, int width, int height, int y, int[] columnMap,
+                      float[] red, float[] green, float[] blue, int offset) {
+    int source = edge(y - rows / 2, height) * width;
+    for (int x = 0; x < columnMap.length; x++) {
+      int rgb = pixels[source + columnMap[x]];
+      red[offset + x] = (rgb >> 16) & 0xFF;
+      green[offset + x] = (rgb >> 8) & 0xFF;
+      blue[offset + x] = rgb & 0xFF;
+    }
+  }
+
+  /**
+   * Class method to round, clamp and pack one row of channel sums
+   * @param red the red sums
+   * @param green the green sums
+   * @param blue the blue sums
+   * @param result the packed pixels
+   * @param offset where the row starts in result
+   */
+  private static void pack(float[] red, float[] green, float[] blue, int[] result, int offset) {
+    for (int x = 0; x < red.length; x++) {
+      result[offset + x] = KMeans.pack(clamp(red[x]), clamp(green[x]), clamp(blue[x]));
+    }
+  }
+
+  /**
+   * Class method to round a channel sum to 0-255.  Float sums of
+   * normalized weights come out just under whole numbers, so truncating
+   * would darken every pixel by one.
+   * @param value the sum
+   * @return the channel value
+   */
+  private static int clamp(float value) {
+    int v = (int) (value + 0.5f);
+    return v < 0 ? 0 : v > 255 ? 255 : v;
+  }
+
+  /**
+   * Method to map a coordinate beyond the image back into it
+   * @param i the coordinate, possibly negative or too large
+   * @param n the size of the image along that axis
+   * @return a coordinate from 0 to n - 1
+   */
+  int edge(int i, int n) {
+    if (i >= 0 && i < n) {
+      return i;
+    }
+    switch (edgeMode) {
+      case WRAP:
+        return Math.floorMod(i, n);
+      case REFLECT:
+        int period = Math.floorMod(i, 2 * n);
+        return period < n ? period : 2 * n - 1 - period;
+      default:
+        return i < 0 ? 0 : n - 1;
+    }
+  }
+
+  /**
+   * Class method to split a kernel into a column and a row whose outer
+   * product is the kernel, when it has rank one
+   * @param kernel the kernel
+   * @return {column, row}, or null if the kernel is not separable
+   */
+  static float[][] factor(float[][] kernel) {
+    int rows = kernel.length;
+    int columns = kernel[0].length;
+
+    // pivot on the largest weight
+    int pr = 0;
+    int pc = 0;
+    float max = 0;
+    for (int r = 0; r < rows; r++) {
+      for (int c = 0; c < columns; c++) {
+        if (Math.abs(kernel[r][c]) > max) {
+          max = Math.abs(kernel[r][c]);
+          pr = r;
+          pc = c;
+        }
+      }
+    }
+    if (max == 0 || (rows == 1 && columns == 1)) {
+      return null;
+    }
+    float[] column = new float[rows];
+    float[] row = new float[columns];
+    for (int r = 0; r < rows; r++) {
+      column[r] = kernel[r][pc];
+    }
+    for (int c = 0; c < columns; c++) {
+      row[c] = kernel[pr][c] / kernel[pr][pc];
+    }
+    for (int r = 0; r < rows; r++) {
+      for (int c = 0; c < columns; c++) {
+        if (Math.abs(column[r] * row[c] - kernel[r][c]) > SEPARABLE_EPSILON * max) {
+          return null;
+        }
+      }
+    }
+    return new float[][] {column, row};
+  }
+
+  /**
+   * Class method to build a kernel from its column and row factors
+   * @return kernel[r][c] = column[r] * row[c]
+   */
+  private static float[][] outer(float[] column, float[] row) {
+    float[][] kernel = new float[column.length][row.length];
+    for (int r = 0; r < column.length; r++) {
+      for (int c = 0; c < row.length; c++) {
+        kernel[r][c] = column[r] * row[c];
+      }
+    }
+    return kernel;
+  }
+}
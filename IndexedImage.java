@@ -0,0 +1,210 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * A class that holds a color-reduced image the compact way: one byte per
+ * pixel giving its index in a palette of at most 256 colors.  That is a
+ * quarter of the memory of a 32-bit picture, and it is written out as a
+ * true indexed PNG or GIF whose bit depth (1, 2, 4 or 8) is picked from
+ * the palette size.
+ */
+
+public class IndexedImage {
+
+  /** largest palette an indexed image can have */
+  public static final int MAX_COLORS = 256;
+
+  /** the width in pixels */
+  private final int width;
+
+  /** the height in pixels */
+  private final int height;
+
+  /** the palette as packed 0xRRGGBB colors */
+  private final int[] palette;
+
+  /** palette index of every pixel in row-major order */
+  private final byte[] indices;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the palette and the index of every pixel
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @param palette packed 0xRRGGBB colors, 1 to 256 of them
+   * @param indices palette index of every pixel in row-major order
+   */
+  public IndexedImage(int width, int height, int[] palette, byte[] indices) {
+    if (palette.length < 1 || palette.length > MAX_COLORS) {
+      throw new IllegalArgumentException("palette size must be 1 to " + MAX_COLORS + ": " + palette.length);
+    }
+    if (indices.length != width * height) {
+      throw new IllegalArgumentException("expected " + (width * height) + " indices but got " + indices.length);
+    }
+    this.width = width;
+    this.height = height;
+    this.palette = palette.clone();
+    this.indices = indices;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Class method to map packed pixels to their closest palette colors
+   * @param pixels packed 0xRRGGBB pixels in row-major order
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @param palette packed 0xRRGGBB colors, 1 to 256 of them
+   * @return the indexed image
+   */
+  public static IndexedImage of(int[] pixels, int width, int height, int[] palette) {
+    byte[] indices = new byte[pixels.length];
+    PaletteSearch search = KMeans.searchFor(pixels.length, palette);
+    for (int i = 0; i < pixels.length; i++) {
+      indices[i] = (byte) search.nearest(pixels[i]);
+    }
+    return new IndexedImage(width, height, palette, indices);
+  }
+
+  /**
+   * Class method to get the bits per pixel needed for a palette
+   * @param colors the palette size
+   * @return 1, 2, 4 or 8
+   */
+  public static int bitDepth(int colors) {
+    if (colors <= 2) {
+      return 1;
+    } else if (colors <= 4) {
+      return 2;
+    } else if (colors <= 16) {
+      return 4;
+    }
+    return 8;
+  }
+
+  /**
+   * Class method to make the color model for a palette
+   * @param palette packed 0xRRGGBB colors, 1 to 256 of them
+   * @return an IndexColorModel with the bit depth for the palette size
+   */
+  public static IndexColorModel colorModel(int[] palette) {
+    int bits = bitDepth(palette.length);
+    byte[] r = new byte[palette.length];
+    byte[] g = new byte[palette.length];
+    byte[] b = new byte[palette.length];
+    for (int i = 0; i < palette.length; i++) {
+      r[i] = (byte) (palette[i] >> 16);
+      g[i] = (byte) (palette[i] >> 8);
+      b[i] = (byte) palette[i];
+    }
+    return new IndexColorModel(bits, palette.length, r, g, b);
+  }
+
+  /**
+   * Method to get the width
+   * @return the width in pixels
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Method to get the height
+   * @return the height in pixels
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Method to get the palette
+   * @return a copy of the packed 0xRRGGBB colors
+   */
+  public int[] getPalette() {
+    return palette.clone();
+  }
+
+  /**
+   * Method to get the palette index of every pixel.  The array is not
+   * copied, read the indexes as unsigned (index & 0xFF).
+   * @return the indexes in row-major order
+   */
+  public byte[] getIndices() {
+    return indices;
+  }
+
+  /**
+   * Method to get the bits per pixel this image is written with
+   * @return 1, 2, 4 or 8
+   */
+  public int getBitDepth() {
+    return bitDepth(palette.length);
+  }
+
+  /**
+   * Method to expand the image back to packed pixels
+   * @return packed 0xRRGGBB pixels in row-major order
+   */
+  public int[] toPackedPixels() {
+    int[] pixels = new int[indices.length];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = palette[indices[i] & 0xFF];
+    }
+    return pixels;
+  }
+
+  /**
+   * Method to make a picture from the image
+   * @return a new picture with the palette colors
+   */
+  public Picture toPicture() {
+    Picture picture = new Picture(width, height);
+    picture.setPackedPixels(toPackedPixels());
+    return picture;
+  }
+
+  /**
+   * Method to make an indexed BufferedImage.  At 8 bits the image shares
+   * the index array, at fewer bits the indexes are packed into bytes.
+   * @return an image with an IndexColorModel
+   */
+  public BufferedImage toBufferedImage() {
+    IndexColorModel model = colorModel(palette);
+    if (model.getPixelSize() == 8) {
+      WritableRaster raster = Raster.createInterleavedRaster(
+        new DataBufferByte(indices, indices.length), width, height, width, 1, new int[] {0}, null);
+      return new BufferedImage(model, raster, false, null);
+    }
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, model);
+    WritableRaster raster = image.getRaster();
+    int[] row = new int[width];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        row[x] = indices[y * width + x] & 0xFF;
+      }
+      raster.setSamples(0, y, width, 1, 0, row);
+    }
+    return image;
+  }
+
+  /**
+   * Method to write the image as an indexed PNG or GIF
+   * @param file the file to write, the format taken from its extension
+   *   (png when there is none)
+   * @throws IOException if the image cannot be written
+   */
+  public void write(File file) throws IOException {
+    String name = file.getName();
+    String format = name.lastIndexOf('.') < 0 ? "png" : name.substring(name.lastIndexOf('.') + 1);
+    if (!ImageIO.write(toBufferedImage(), format, file)) {
+      throw new IOException("no image writer for " + format);
+    }
+  }
+}
@@ -0,0 +1,218 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A class that maps colors to palette indexes with one table lookup.  The
+ * RGB cube is cut into a grid of cells (32x32x32 or 64x64x64) and every
+ * cell stores the palette index closest to its center.  With refinement
+ * on, a cell that lies near a boundary between palette colors stores the
+ * few palette entries that can be closest to some color in it instead,
+ * and only those are compared, so the result is always the same as a
+ * full nearest-color search.
+ *
+ * Building a map costs about one search per cell, so maps are cached by
+ * palette and shared by every image mapped to the same palette.
+ */
+
+public class InverseColorMap {
+
+  /** number of maps kept by forPalette */
+  private static final int CACHE_SIZE = 16;
+
+  /** largest palette a map can be built for */
+  private static final int MAX_PALETTE = Character.MAX_VALUE + 1;
+
+  /** shared maps, least recently used first */
+  private static final Map<PaletteKey, InverseColorMap> cache =
+    new LinkedHashMap<PaletteKey, InverseColorMap>(CACHE_SIZE, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<PaletteKey, InverseColorMap> eldest) {
+        return size() > CACHE_SIZE;
+      }
+    };
+
+  /** the palette as packed 0xRRGGBB colors */
+  private final int[] palette;
+
+  /** bits of each channel used to pick a cell */
+  private final int bits;
+
+  /** where the candidates of each cell start, one extra at the end */
+  private final int[] offsets;
+
+  /** palette indexes that can be closest in each cell, lowest first */
+  private final char[] candidates;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that builds the map for a palette
+   * @param palette packed 0xRRGGBB palette colors, at most 65536
+   * @param bits bits per channel of the grid, 5 (32x32x32) or 6 (64x64x64)
+   * @param refine true to compare the possible palette entries in cells
+   *   near a boundary, false to always use the color closest to the center
+   */
+  public InverseColorMap(int[] palette, int bits, boolean refine) {
+    if (bits < 1 || bits > 8) {
+      throw new IllegalArgumentException("bits must be 1 to 8: " + bits);
+    }
+    if (palette.length == 0 || palette.length > MAX_PALETTE) {
+      throw new IllegalArgumentException("palette size must be 1 to " + MAX_PALETTE);
+    }
+    this.palette = palette.clone();
+    this.bits = bits;
+
+    int count = 1 << (3 * bits);
+    int size = 1 << (8 - bits);
+    // farthest any color in a cell is from the center
+    double reach = Math.sqrt(3) * (size / 2);
+    KdTreePaletteSearch tree = new KdTreePaletteSearch(this.palette);
+    offsets = new int[count + 1];
+    char[] found = new char[count];
+    int used = 0;
+    int cell = 0;
+
+    for (int r = 0; r < (1 << bits); r++) {
+      for (int g = 0; g < (1 << bits); g++) {
+        for (int b = 0; b < (1 << bits); b++) {
+          int center = KMeans.pack(r * size + size / 2, g * size + size / 2, b * size + size / 2);
+          long two = tree.nearestTwo(center);
+          offsets[cell] = used;
+          double closest = Math.sqrt(KdTreePaletteSearch.distanceOf(two));
+
+          if (!refine || palette.length == 1
+              || Math.sqrt(KdTreePaletteSearch.secondDistanceOf(two)) - closest > 2 * reach) {
+            // every color in the cell has the same closest entry
+            found = append(found, used++, KdTreePaletteSearch.indexOf(two));
+          } else {
+            // keep every entry that may beat the closest somewhere in the cell
+            double limit = closest + 2 * reach + 1e-9;
+            limit *= limit;
+            for (int i = 0; i < palette.length; i++) {
+              if (KMeans.distance(center, palette[i]) <= limit) {
+                found = append(found, used++, i);
+              }
+            }
+          }
+          cell++;
+        }
+      }
+    }
+    offsets[count] = used;
+    candidates = Arrays.copyOf(found, used);
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Class method to get the refined 64x64x64 map for a palette, built
+   * once and then shared from a small cache
+   * @param palette packed 0xRRGGBB palette colors
+   * @return the map for the palette
+   */
+  public static InverseColorMap forPalette(int[] palette) {
+    PaletteKey key = new PaletteKey(palette);
+    synchronized (cache) {
+      InverseColorMap map = cache.get(key);
+      if (map != null) {
+        return map;
+      }
+    }
+    // build outside the lock, two threads may both build the same map
+    InverseColorMap map = new InverseColorMap(palette, 6, true);
+    synchronized (cache) {
+      cache.put(key, map);
+    }
+    return map;
+  }
+
+  /**
+   * Method to get the palette index for a color
+   * @param rgb packed 0xRRGGBB color
+   * @return index of the palette entry the color maps to
+   */
+  public int lookup(int rgb) {
+    int shift = 8 - bits;
+    int cell = ((((rgb >> 16) & 0xFF) >> shift) << (2 * bits))
+      | ((((rgb >> 8) & 0xFF) >> shift) << bits)
+      | ((rgb & 0xFF) >> shift);
+    int from = offsets[cell];
+    int to = offsets[cell + 1];
+    if (to - from == 1) {
+      return candidates[from];
+    }
+
+    // candidates are in index order, so strictly less keeps the lowest on ties
+    int best = candidates[from];
+    int bestDist = KMeans.distance(rgb, palette[best]);
+    for (int i = from + 1; i < to; i++) {
+      int dist = KMeans.distance(rgb, palette[candidates[i]]);
+      if (dist < bestDist) {
+        bestDist = dist;
+        best = candidates[i];
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Method to replace every pixel with the palette color it maps to
+   * @param pixels packed 0xRRGGBB pixels
+   * @param target array to write the mapped pixels into (may be pixels)
+   */
+  public void map(int[] pixels, int[] target) {
+    for (int i = 0; i < pixels.length; i++) {
+      target[i] = palette[lookup(pixels[i])];
+    }
+  }
+
+  /**
+   * Method to get the palette the map was built for
+   * @return a copy of the packed palette colors
+   */
+  public int[] getPalette() {
+    return palette.clone();
+  }
+
+  /**
+   * Method to get the average number of palette entries compared per
+   * lookup, over all the cells
+   * @return 1 when refinement is off, a little more when it is on
+   */
+  public double getAverageCandidates() {
+    return (double) candidates.length / (offsets.length - 1);
+  }
+
+  /**
+   * Class method to add an index to a growing candidate array
+   * @return the array, grown if it was full
+   */
+  private static char[] append(char[] found, int used, int index) {
+    if (used == found.length) {
+      found = Arrays.copyOf(found, found.length * 2);
+    }
+    found[used] = (char) index;
+    return found;
+  }
+
+  /**
+   * A palette used as a cache key
+   */
+  private static class PaletteKey {
+    private final int[] palette;
+    private final int hash;
+
+    PaletteKey(int[] palette) {
+      this.palette = palette.clone();
+      this.hash = Arrays.hashCode(palette);
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object other) {
+      return other instanceof PaletteKey && Arrays.equals(palette, ((PaletteKey) other).palette);
+    }
+  }
+}
@@ -0,0 +1,1502 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A class that runs the k-means color clustering used by Picture on a
+ * packed raster.  Every pixel is a single 0xRRGGBB int, so the assignment,
+ * centroid update and remapping steps work on primitive arrays and never
+ * allocate a Color (or a Pixel) per pixel.
+ *
+ * Start with the first k unique colors (or random colors, or k-means++
+ * seeds), then recluster until the centroids stop moving.  The assignment step is split into fixed-size
+ * chunks on a ForkJoinPool; each chunk keeps its own sum/count
+ * accumulators and the chunks are merged with exact integer sums, so the
+ * result for a fixed input does not depend on the number of threads.
+ *
+ * In histogram mode the pixels are first counted per unique color and the
+ * k-means runs over the unique colors weighted by their counts, which
+ * gives the same palette at a fraction of the cost on flat-color images.
+ *
+ * The HAMERLY algorithm keeps a lower bound per point on the distance to
+ * its second closest centroid, plus half the distance from every centroid
+ * to its nearest other centroid.  A point whose own centroid is closer
+ * than both is known not to move and the other k-1 distances are skipped.
+ * It gives the same palette as LLOYD, the plain algorithm.
+ *
+ * For very large images the mini-batch mode fits the palette on random
+ * batches of pixels, moving each centroid toward its pixels with a
+ * learning rate of 1/(pixels seen so far), and never makes a full pass.
+ *
+ * A run can be bounded by a tolerance on how far the centroids move, a
+ * maximum number of iterations and a time limit, and stopped from another
+ * thread with cancel.  Without any of these a run still ends once the
+ * inertia has not gone down for STALL_ITERATIONS iterations, since
+ * truncated centroids can oscillate forever.  computeResult tells which
+ * of these stopped it.
+ * It can also start from a given palette instead of seeding, which is
+ * how SequenceQuantizer carries the palette from frame to frame.
+ *
+ * Listeners added with addListener get the inertia, changed pixels, empty
+ * clusters and centroid drift of every iteration and the totals of every
+ * run.  Nothing is printed unless a ConsoleListener is added.
+ */
+
+public class KMeans implements Quantizer {
+
+  /** the assignment algorithms that can be selected */
+  public enum Algorithm {
+    /** compare every point with every centroid on every iteration */
+    LLOYD,
+    /** skip points whose distance bounds prove they keep their centroid */
+    HAMERLY
+  }
+
+  /** the ways the initial centroids can be chosen */
+  public enum Seeding {
+    /** the first k unique colors in scan order */
+    FIRST_UNIQUE,
+    /** k random colors */
+    RANDOM,
+    /** k-means++: each seed drawn with probability proportional to its
+     *  squared distance from the seeds already chosen */
+    KMEANS_PLUS_PLUS
+  }
+
+  /** number of pixels a single fork/join task assigns without splitting */
+  static final int CHUNK_SIZE = 1 << 16;
+
+  /** a run stops once this many iterations pass without a lower inertia */
+  static final int STALL_ITERATIONS = 10;
+
+  /** images at least this big are mapped through an InverseColorMap */
+  static final int LOOKUP_TABLE_PIXELS = 1 << 20;
+
+  /** the desired number of clusters */
+  private int number;
+
+  /** number of worker threads, 0 means use the common pool */
+  private int parallelism = 0;
+
+  /** pool created for a fixed parallelism, made on first use */
+  private ForkJoinPool pool = null;
+
+  /** whether to cluster unique colors weighted by count instead of pixels */
+  private boolean histogram = false;
+
+  /** the assignment algorithm */
+  private Algorithm algorithm = Algorithm.LLOYD;
+
+  /** how the initial centroids are chosen */
+  private Seeding seeding = Seeding.FIRST_UNIQUE;
+
+  /** pixels per mini-batch, 0 when mini-batch mode is off */
+  private int batchSize = 0;
+
+  /** fraction of the pixels sampled over all the mini-batches */
+  private double sampleRate = 0.1;
+
+  /** seed of the random seeding and of the mini-batch sampling */
+  private long seed = 0;
+
+  /** iterations of the last run */
+  private int iterations = 0;
+
+  /** nanoseconds the last run spent choosing seeds and clustering */
+  private long seedingNanos = 0;
+  private long clusteringNanos = 0;
+
+  /** nanoseconds the last run spent in the assignment and update steps */
+  private long assignmentNanos = 0;
+  private long updateNanos = 0;
+
+  /** distance evaluations skipped in each iteration of the last run */
+  private ArrayList<Long> skipped = new ArrayList<Long>();
+
+  /** largest centroid move, in RGB units, that still counts as converged */
+  private double tolerance = 0;
+
+  /** most iterations of a run, 0 for no limit */
+  private int maxIterations = 0;
+
+  /** longest a run may take in nanoseconds, 0 for no limit */
+  private long timeLimit = 0;
+
+  /** System.nanoTime() at which the run in progress must stop, 0 for none */
+  private volatile long deadline = 0;
+
+  /** set by cancel, cleared when a run ends */
+  private volatile boolean cancelled = false;
+
+  /** merged accumulator of the last iteration */
+  private Accumulator last = null;
+
+  /** listeners told about every iteration and run */
+  private final List<KMeansListener> listeners = new CopyOnWriteArrayList<KMeansListener>();
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the desired number of clusters
+   * @param number desired number of clusters
+   */
+  public KMeans(int number) {
+    if (number < 1) {
+      throw new IllegalArgumentException("number of clusters must be at least 1: " + number);
+    }
+    this.number = number;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to get the desired number of clusters
+   * @return the desired number of clusters
+   */
+  public int getNumber() {
+    return number;
+  }
+
+  /**
+   * Method to get the number of worker threads used by recluster
+   * @return the parallelism, 0 when the common pool is used
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Method to set the number of worker threads used by recluster, so that
+   * several jobs can share a machine.  1 runs everything on the calling
+   * thread and 0 uses the common ForkJoinPool.
+   * @param parallelism the number of worker threads
+   */
+  public synchronized void setParallelism(int parallelism) {
+    if (parallelism < 0) {
+      throw new IllegalArgumentException("parallelism must not be negative: " + parallelism);
+    }
+    if (pool != null) {
+      pool.shutdown();
+      pool = null;
+    }
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Method to get the pool the assignment tasks run on
+   * @return the pool for the configured parallelism
+   */
+  synchronized ForkJoinPool getPool() {
+    if (parallelism == 0) {
+      return ForkJoinPool.commonPool();
+    }
+    if (pool == null) {
+      pool = new ForkJoinPool(parallelism);
+    }
+    return pool;
+  }
+
+  /**
+   * Method to tell if the k-means runs over a color histogram
+   * @return true if unique colors are clustered instead of pixels
+   */
+  public boolean isHistogram() {
+    return histogram;
+  }
+
+  /**
+   * Method to turn histogram mode on or off.  In histogram mode the
+   * pixels are counted once and every iteration only visits the unique
+   * colors.
+   * @param histogram true to cluster unique colors weighted by count
+   */
+  public void setHistogram(boolean histogram) {
+    this.histogram = histogram;
+  }
+
+  /**
+   * Method to get the assignment algorithm
+   * @return the algorithm, LLOYD by default
+   */
+  public Algorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  /**
+   * Method to choose the assignment algorithm.  Both give the same palette.
+   * @param algorithm LLOYD or HAMERLY
+   */
+  public void setAlgorithm(Algorithm algorithm) {
+    if (algorithm == null) {
+      throw new IllegalArgumentException("algorithm must not be null");
+    }
+    this.algorithm = algorithm;
+  }
+
+  /**
+   * Method to get how many point-to-centroid distances the bounds let
+   * the last computePalette skip, one entry per iteration.  Always zero
+   * for LLOYD.
+   * @return the skipped distance evaluations per iteration
+   */
+  public long[] getSkippedDistances() {
+    long[] result = new long[skipped.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = skipped.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Method to get the mini-batch size
+   * @return pixels per batch, 0 when mini-batch mode is off
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Method to get the fraction of pixels the mini-batches sample
+   * @return the sampling rate
+   */
+  public double getSampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * Method to get the random seed
+   * @return the seed
+   */
+  public long getSeed() {
+    return seed;
+  }
+
+  /**
+   * Method to set the random seed used by RANDOM and KMEANS_PLUS_PLUS
+   * seeding and by mini-batch sampling.  The same seed gives the same
+   * palette.
+   * @param seed the seed
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * Method to get how the initial centroids are chosen
+   * @return the seeding, FIRST_UNIQUE by default
+   */
+  public Seeding getSeeding() {
+    return seeding;
+  }
+
+  /**
+   * Method to choose how the initial centroids are chosen
+   * @param seeding FIRST_UNIQUE, RANDOM or KMEANS_PLUS_PLUS
+   */
+  public void setSeeding(Seeding seeding) {
+    if (seeding == null) {
+      throw new IllegalArgumentException("seeding must not be null");
+    }
+    this.seeding = seeding;
+  }
+
+  /**
+   * Method to get the number of iterations of the last run
+   * @return the iterations (batches in mini-batch mode)
+   */
+  public int getIterations() {
+    return iterations;
+  }
+
+  /**
+   * Method to get the time the last run spent choosing seeds, including
+   * building the histogram the seeds are drawn from
+   * @return the time in nanoseconds
+   */
+  public long getSeedingNanos() {
+    return seedingNanos;
+  }
+
+  /**
+   * Method to get the time the last run spent iterating after seeding
+   * @return the time in nanoseconds
+   */
+  public long getClusteringNanos() {
+    return clusteringNanos;
+  }
+
+  /**
+   * Method to get the time the last run spent assigning points to
+   * centroids
+   * @return the time in nanoseconds
+   */
+  public long getAssignmentNanos() {
+    return assignmentNanos;
+  }
+
+  /**
+   * Method to get the time the last run spent computing new centroids
+   * @return the time in nanoseconds
+   */
+  public long getUpdateNanos() {
+    return updateNanos;
+  }
+
+  /**
+   * Method to get the convergence tolerance
+   * @return the largest centroid move that counts as converged
+   */
+  public double getTolerance() {
+    return tolerance;
+  }
+
+  /**
+   * Method to set the convergence tolerance.  A run stops once no centroid
+   * moves farther than this in an iteration; 0 waits until none moves.
+   * @param tolerance the distance in RGB units
+   */
+  public void setTolerance(double tolerance) {
+    if (!(tolerance >= 0)) {
+      throw new IllegalArgumentException("tolerance must not be negative: " + tolerance);
+    }
+    this.tolerance = tolerance;
+  }
+
+  /**
+   * Method to get the maximum number of iterations of a run
+   * @return the limit, 0 for none
+   */
+  public int getMaxIterations() {
+    return maxIterations;
+  }
+
+  /**
+   * Method to set the maximum number of iterations (batches in mini-batch
+   * mode) of a run
+   * @param maxIterations the limit, 0 for none
+   */
+  public void setMaxIterations(int maxIterations) {
+    if (maxIterations < 0) {
+      throw new IllegalArgumentException("max iterations must not be negative: " + maxIterations);
+    }
+    this.maxIterations = maxIterations;
+  }
+
+  /**
+   * Method to get the time limit of a run
+   * @return the limit in nanoseconds, 0 for none
+   */
+  public long getTimeLimit() {
+    return timeLimit;
+  }
+
+  /**
+   * Method to set how long a run may take, counted from when it starts
+   * and including the seeding.  When it runs out the iteration in progress
+   * is dropped at the next chunk of points and the best palette so far is
+   * returned.
+   * @param timeLimit the limit, 0 for none
+   * @param unit the unit of the limit
+   */
+  public void setTimeLimit(long timeLimit, TimeUnit unit) {
+    if (timeLimit < 0) {
+      throw new IllegalArgumentException("time limit must not be negative: " + timeLimit);
+    }
+    this.timeLimit = unit.toNanos(timeLimit);
+  }
+
+  /**
+   * Method to stop the run in progress, from any thread.  The run drops
+   * the iteration it is in at the next chunk of points and returns the
+   * best palette so far.  A cancel before a run starts stops that run
+   * before its first iteration.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Method to tell if the run in progress has to stop
+   * @return true if it was cancelled or its time limit ran out
+   */
+  boolean isStopping() {
+    long end = deadline;
+    return cancelled || (end != 0 && System.nanoTime() - end >= 0);
+  }
+
+  /**
+   * Method to add a listener for iterations and runs.  With a listener
+   * the changed pixels are counted, which costs one int per point on top
+   * of the LLOYD assignment.
+   * @param listener the listener to add
+   */
+  public void addListener(KMeansListener listener) {
+    if (listener == null) {
+      throw new IllegalArgumentException("listener must not be null");
+    }
+    listeners.add(listener);
+  }
+
+  /**
+   * Method to remove a listener
+   * @param listener the listener to remove
+   */
+  public void removeListener(KMeansListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Method to turn on mini-batch mode.  The palette is fit on batches of
+   * randomly sampled pixels until sampleRate of the image has been seen
+   * (at least one batch), which takes the place of the full passes.
+   * Mini-batch mode takes precedence over histogram mode.
+   * @param batchSize pixels per batch, 0 turns mini-batch mode off
+   * @param sampleRate fraction of the pixels to sample in total
+   * @param seed seed of the sampling, the same seed gives the same palette
+   */
+  public void setMiniBatch(int batchSize, double sampleRate, long seed) {
+    if (batchSize < 0) {
+      throw new IllegalArgumentException("batch size must not be negative: " + batchSize);
+    }
+    if (!(sampleRate > 0 && sampleRate <= 1)) {
+      throw new IllegalArgumentException("sample rate must be in (0, 1]: " + sampleRate);
+    }
+    this.batchSize = batchSize;
+    this.sampleRate = sampleRate;
+    this.seed = seed;
+  }
+
+  /**
+   * Method to describe the options that change the palette, for keying
+   * cached palettes.  The algorithm, histogram mode and parallelism are
+   * left out because they give the same palette.
+   * @return a string that is equal for options giving equal palettes
+   */
+  public String getCacheKey() {
+    String key = "k=" + number + ",seeding=" + seeding;
+    if (seeding != Seeding.FIRST_UNIQUE || batchSize > 0) {
+      key += ",seed=" + seed;
+    }
+    if (batchSize > 0) {
+      key += ",batch=" + batchSize + ",rate=" + sampleRate;
+    }
+    if (tolerance > 0) {
+      key += ",tolerance=" + tolerance;
+    }
+    if (maxIterations > 0) {
+      key += ",max=" + maxIterations;
+    }
+    // a run cut short by its time limit depends on the machine, so the
+    // limit only keeps such palettes apart from unlimited ones
+    if (timeLimit > 0) {
+      key += ",limit=" + timeLimit;
+    }
+    return key;
+  }
+
+  /**
+   * Method to compute a palette using the k-means algorithm
+   * @param pixels packed 0xRRGGBB pixels to cluster
+   * @return the converged palette as packed 0xRRGGBB colors
+   */
+  public int[] computePalette(int[] pixels) {
+    return computeResult(pixels).getPalette();
+  }
+
+  /**
+   * Method to compute a palette using the k-means algorithm
+   * @param pixels packed 0xRRGGBB pixels in row-major order
+   * @param width the width in pixels, not used
+   * @param height the height in pixels, not used
+   * @return the converged palette as packed 0xRRGGBB colors
+   */
+  public int[] computePalette(int[] pixels, int width, int height) {
+    return computePalette(pixels);
+  }
+
+  /**
+   * Method to compute a palette using weighted k-means over the unique
+   * colors of a histogram
+   * @param histogram the colors and their pixel counts
+   * @return the converged palette as packed 0xRRGGBB colors
+   */
+  public int[] computePalette(ColorHistogram histogram) {
+    return computeResult(histogram).getPalette();
+  }
+
+  /**
+   * Method to run the k-means within the tolerance, iteration and time
+   * limits
+   * @param pixels packed 0xRRGGBB pixels to cluster
+   * @return the palette and why the run stopped
+   */
+  public KMeansResult computeResult(int[] pixels) {
+    long start = System.nanoTime();
+    deadline = timeLimit == 0 ? 0 : start + timeLimit;
+    try {
+      if (batchSize > 0) {
+        return miniBatch(pixels, start);
+      }
+      if (histogram) {
+        ColorHistogram counts = ColorHistogram.of(pixels);
+        int[] colors = counts.getColors();
+        int[] weights = counts.getCounts();
+        return cluster(colors, weights, seed(colors, weights), start, null);
+      }
+      return cluster(pixels, null, seed(pixels, null), start, null);
+    } finally {
+      deadline = 0;
+      cancelled = false;
+    }
+  }
+
+  /**
+   * Method to run weighted k-means over the unique colors of a histogram
+   * within the tolerance, iteration and time limits
+   * @param histogram the colors and their pixel counts
+   * @return the palette and why the run stopped
+   */
+  public KMeansResult computeResult(ColorHistogram histogram) {
+    long start = System.nanoTime();
+    deadline = timeLimit == 0 ? 0 : start + timeLimit;
+    try {
+      int[] colors = histogram.getColors();
+      int[] weights = histogram.getCounts();
+      return cluster(colors, weights, seed(colors, weights), start, null);
+    } finally {
+      deadline = 0;
+      cancelled = false;
+    }
+  }
+
+  /**
+   * Method to run the k-means from given centroids instead of seeding
+   * them, for when a close palette is already known such as the one of
+   * the previous frame of an animation.  Mini-batch mode is not used.
+   * @param pixels packed 0xRRGGBB pixels to cluster
+   * @param initial the starting centroids as packed 0xRRGGBB colors
+   * @return the palette and why the run stopped
+   */
+  public KMeansResult computeResult(int[] pixels, int[] initial) {
+    return computeResult(pixels, initial, null);
+  }
+
+  /**
+   * Method to run the k-means from given centroids, keeping the HAMERLY
+   * bounds of an earlier run over pixels at the same positions.  Bounds
+   * that were left for other centroids than the initial ones are thrown
+   * away, and points whose label was reset to -1 get a full scan.
+   * @param pixels packed 0xRRGGBB pixels to cluster
+   * @param initial the starting centroids as packed 0xRRGGBB colors
+   * @param bounds bounds with one entry per pixel, or null to start over
+   * @return the palette and why the run stopped
+   */
+  KMeansResult computeResult(int[] pixels, int[] initial, Bounds bounds) {
+    long start = System.nanoTime();
+    deadline = timeLimit == 0 ? 0 : start + timeLimit;
+    try {
+      if (bounds == null && histogram) {
+        ColorHistogram counts = ColorHistogram.of(pixels);
+        return cluster(counts.getColors(), counts.getCounts(), initial.clone(), start, null);
+      }
+      return cluster(pixels, null, initial.clone(), start, bounds);
+    } finally {
+      deadline = 0;
+      cancelled = false;
+    }
+  }
+
+  /**
+   * Method to choose the initial centroids
+   * @param points packed 0xRRGGBB colors, pixels or unique colors
+   * @param weights pixel count of each point when points are the unique
+   *   colors of a histogram in first-seen order, or null for pixels
+   * @return up to k initial centroids
+   */
+  private int[] seed(int[] points, int[] weights) {
+    if (seeding == Seeding.RANDOM) {
+      SplittableRandom random = new SplittableRandom(seed);
+      int[] seeds = new int[number];
+      for (int i = 0; i < number; i++) {
+        seeds[i] = pack(random.nextInt(255), random.nextInt(255), random.nextInt(255));
+      }
+      return seeds;
+    }
+    if (seeding == Seeding.KMEANS_PLUS_PLUS) {
+      if (weights == null) {
+        ColorHistogram counts = ColorHistogram.of(points);
+        return seedPlusPlus(counts.getColors(), counts.getCounts(), number, seed);
+      }
+      return seedPlusPlus(points, weights, number, seed);
+    }
+    if (weights != null) {
+      // a histogram keeps first-seen order, so these are the first k unique colors
+      return Arrays.copyOf(points, Math.min(number, points.length));
+    }
+    return seedFirstUnique(points, number);
+  }
+
+  /**
+   * Method to recluster until the centroids stop moving, the inertia stops
+   * going down or a limit is hit.
+   * A run that converged, or whose inertia was still going down, returns
+   * the palette of the last update; if the inertia went up (truncated
+   * centroids can oscillate) the palette that had the lowest inertia is
+   * returned instead.
+   * @param points packed 0xRRGGBB colors to cluster
+   * @param weights number of pixels per point, or null for one each
+   * @param seeds initial centroids
+   * @param start System.nanoTime() when the run began
+   * @param bounds bounds kept from an earlier run, or null for new ones
+   *   when the algorithm is HAMERLY
+   * @return the palette and why the run stopped
+   */
+  private KMeansResult cluster(int[] points, int[] weights, int[] seeds, long start,
+                               Bounds bounds) {
+    long seeded = System.nanoTime();
+    seedingNanos = seeded - start;
+    if (bounds == null) {
+      bounds = algorithm == Algorithm.HAMERLY ? new Bounds(points.length) : null;
+    } else if (!Arrays.equals(bounds.centroids, seeds)) {
+      bounds.reset();
+    }
+    // the cluster of every point is only tracked to count changes for listeners
+    int[] labels = bounds != null ? bounds.labels : listeners.isEmpty() ? null : new int[points.length];
+    if (bounds == null && labels != null) {
+      Arrays.fill(labels, -1);
+    }
+    skipped.clear();
+    assignmentNanos = 0;
+    updateNanos = 0;
+
+    last = null;
+
+    int[] current = seeds;
+    int[] best = seeds;
+    long bestInertia = -1;
+    boolean improving = true;
+    int stalled = 0;
+    KMeansResult.StopReason reason;
+
+    while (true) {
+      int[] next = isStopping() ? null : iterate(points, weights, current, bounds, labels);
+      if (next == null) {
+        reason = cancelled ? KMeansResult.StopReason.CANCELLED : KMeansResult.StopReason.DEADLINE;
+        break;
+      }
+      // the inertia measured in this iteration is that of current
+      improving = bestInertia < 0 || last.inertia < bestInertia;
+      if (improving) {
+        bestInertia = last.inertia;
+        best = current;
+        stalled = 0;
+      } else {
+        stalled++;
+      }
+      double drift = maxDrift(current, next);
+      current = next; // save the palette for comparison and recluster
+      if (drift == 0) {
+        reason = KMeansResult.StopReason.CONVERGED;
+        break;
+      } else if (drift <= tolerance) {
+        reason = KMeansResult.StopReason.TOLERANCE;
+        break;
+      } else if (maxIterations > 0 && skipped.size() >= maxIterations) {
+        reason = KMeansResult.StopReason.MAX_ITERATIONS;
+        break;
+      } else if (stalled >= STALL_ITERATIONS) {
+        reason = KMeansResult.StopReason.STALLED;
+        break;
+      }
+    }
+    int[] palette = improving || reason == KMeansResult.StopReason.CONVERGED ? current : best;
+    iterations = skipped.size();
+    clusteringNanos = System.nanoTime() - seeded;
+    if (!listeners.isEmpty()) {
+      long pixels = 0;
+      if (last != null) {
+        for (long count : last.counts) {
+          pixels += count;
+        }
+      }
+      runDone(pixels, points.length, bestInertia, palette, reason);
+    }
+    return new KMeansResult(palette, reason, iterations, bestInertia);
+  }
+
+  /**
+   * Method to find how far the centroid that moved most moved
+   * @param from the centroids before an update
+   * @param to the centroids after it
+   * @return the largest move in RGB units
+   */
+  private static double maxDrift(int[] from, int[] to) {
+    int max = 0;
+    for (int c = 0; c < from.length; c++) {
+      max = Math.max(max, distance(from[c], to[c]));
+    }
+    return Math.sqrt(max);
+  }
+
+  /**
+   * Method to tell the listeners that a run is done
+   * @param pixels number of pixels clustered
+   * @param points number of points visited per iteration
+   * @param inertia lowest inertia measured, -1 if none
+   * @param palette the final palette
+   * @param reason why the run stopped
+   */
+  private void runDone(long pixels, int points, long inertia, int[] palette,
+                       KMeansResult.StopReason reason) {
+    KMeansListener.Run run = new KMeansListener.Run(
+      iterations, seedingNanos, assignmentNanos, updateNanos, pixels, points, inertia,
+      palette.clone(), reason);
+    for (KMeansListener listener : listeners) {
+      listener.runDone(run);
+    }
+  }
+
+  /**
+   * Method to tell the listeners that an iteration is done
+   * @param nanos wall time of the iteration
+   * @param acc the merged accumulator of the iteration
+   * @param changed pixels that changed cluster, -1 if not tracked
+   * @param from the centroids before the update
+   * @param to the centroids after the update
+   */
+  private void iterationDone(long nanos, Accumulator acc, long changed, int[] from, int[] to) {
+    int empty = 0;
+    double maxDrift = 0;
+    double totalDrift = 0;
+    for (int c = 0; c < from.length; c++) {
+      if (acc.counts[c] == 0) {
+        empty++;
+      }
+      double drift = Math.sqrt(distance(from[c], to[c]));
+      maxDrift = Math.max(maxDrift, drift);
+      totalDrift += drift;
+    }
+    KMeansListener.Iteration iteration = new KMeansListener.Iteration(
+      skipped.size(), nanos, acc.inertia, changed, empty, maxDrift,
+      from.length == 0 ? 0 : totalDrift / from.length, acc.skipped, to.clone());
+    for (KMeansListener listener : listeners) {
+      listener.iterationDone(iteration);
+    }
+  }
+
+  /**
+   * Method to fit a palette with mini-batch k-means.  The seeds are the
+   * first k unique colors of a random sample rather than of the top rows,
+   * since a batch seldom reaches a badly placed centroid.
+   * @param pixels packed 0xRRGGBB pixels
+   * @param start System.nanoTime() when the run began
+   * @return the fitted palette and why the run stopped
+   */
+  private KMeansResult miniBatch(int[] pixels, long start) {
+    SplittableRandom random = new SplittableRandom(seed);
+    int[] sample = new int[Math.min(pixels.length, Math.max(batchSize, number * 16))];
+    for (int i = 0; i < sample.length; i++) {
+      sample[i] = pixels[random.nextInt(pixels.length)];
+    }
+    int[] seeds = seed(sample, null);
+    int k = seeds.length;
+    long seeded = System.nanoTime();
+    seedingNanos = seeded - start;
+    skipped.clear();
+    if (k == 0) {
+      return new KMeansResult(seeds, KMeansResult.StopReason.CONVERGED, 0, -1);
+    }
+
+    // centroids are kept as doubles so small steps are not lost to rounding
+    double[] centroids = new double[k * 3];
+    for (int c = 0; c < k; c++) {
+      centroids[c * 3] = (seeds[c] >> 16) & 0xFF;
+      centroids[c * 3 + 1] = (seeds[c] >> 8) & 0xFF;
+      centroids[c * 3 + 2] = seeds[c] & 0xFF;
+    }
+    long[] seen = new long[k];
+    int[] palette = seeds.clone();
+
+    long samples = Math.max(batchSize, (long) Math.ceil(sampleRate * pixels.length));
+    long batches = (samples + batchSize - 1) / batchSize;
+    int[] batch = new int[batchSize];
+    int[] labels = new int[batchSize];
+
+    Accumulator acc = null;
+    assignmentNanos = 0;
+    updateNanos = 0;
+    KMeansResult.StopReason reason = KMeansResult.StopReason.CONVERGED;
+
+    for (long b = 0; b < batches; b++) {
+      if (isStopping()) {
+        reason = cancelled ? KMeansResult.StopReason.CANCELLED : KMeansResult.StopReason.DEADLINE;
+        break;
+      }
+      // assign the whole batch to the centroids as they were before it
+      long begin = System.nanoTime();
+      PaletteSearch search = PaletteSearch.forPalette(palette);
+      for (int i = 0; i < batchSize; i++) {
+        batch[i] = pixels[random.nextInt(pixels.length)];
+        labels[i] = search.nearest(batch[i]);
+      }
+      long assigned = System.nanoTime();
+      int[] previous = palette.clone();
+
+      // then step each centroid toward its pixels
+      for (int i = 0; i < batchSize; i++) {
+        int c = labels[i];
+        int rgb = batch[i];
+        double rate = 1.0 / ++seen[c];
+        centroids[c * 3] += rate * (((rgb >> 16) & 0xFF) - centroids[c * 3]);
+        centroids[c * 3 + 1] += rate * (((rgb >> 8) & 0xFF) - centroids[c * 3 + 1]);
+        centroids[c * 3 + 2] += rate * ((rgb & 0xFF) - centroids[c * 3 + 2]);
+      }
+      for (int c = 0; c < k; c++) {
+        palette[c] = pack((int) Math.round(centroids[c * 3]),
+                          (int) Math.round(centroids[c * 3 + 1]),
+                          (int) Math.round(centroids[c * 3 + 2]));
+      }
+      long done = System.nanoTime();
+      assignmentNanos += assigned - begin;
+      updateNanos += done - assigned;
+      skipped.add(0L);
+
+      if (!listeners.isEmpty()) {
+        // the batch statistics are against the centroids it was assigned to
+        acc = new Accumulator(k);
+        for (int i = 0; i < batchSize; i++) {
+          acc.add(labels[i], batch[i], distance(batch[i], previous[labels[i]]), 1);
+        }
+        iterationDone(done - begin, acc, -1, previous, palette);
+      }
+      // a tolerance lets the run end before the sample rate is used up
+      if (tolerance > 0 && maxDrift(previous, palette) <= tolerance) {
+        reason = KMeansResult.StopReason.TOLERANCE;
+        break;
+      } else if (maxIterations > 0 && skipped.size() >= maxIterations && b + 1 < batches) {
+        reason = KMeansResult.StopReason.MAX_ITERATIONS;
+        break;
+      }
+    }
+    iterations = skipped.size();
+    clusteringNanos = System.nanoTime() - seeded;
+    long inertia = acc == null ? -1 : acc.inertia;
+    if (!listeners.isEmpty()) {
+      runDone(iterations * (long) batchSize, batchSize, inertia, palette, reason);
+    }
+    return new KMeansResult(palette, reason, iterations, inertia);
+  }
+
+  /**
+   * Method to run one assignment and update step
+   * @param points packed 0xRRGGBB colors
+   * @param weights number of pixels per point, or null for one each
+   * @param palette current centroids
+   * @param bounds distance bounds for HAMERLY, null for LLOYD
+   * @param labels cluster of every point, updated in place, or null
+   * @return the new centroids, or null if the run has to stop
+   */
+  private int[] iterate(int[] points, int[] weights, int[] palette, Bounds bounds, int[] labels) {
+    long begin = System.nanoTime();
+    if (bounds != null) {
+      bounds.prepare(palette);
+    }
+    Accumulator acc = assign(points, weights, palette, bounds, labels, true);
+    if (acc.stopped) {
+      // the iteration was cut short, so its sums are of only some points
+      // and the bounds are loosened for only some points
+      if (bounds != null) {
+        bounds.centroids = null;
+      }
+      return null;
+    }
+    long assigned = System.nanoTime();
+    int[] next = update(acc, palette);
+    if (bounds != null) {
+      bounds.moved(palette, next);
+    }
+    long done = System.nanoTime();
+    assignmentNanos += assigned - begin;
+    updateNanos += done - assigned;
+    skipped.add(acc.skipped);
+    last = acc;
+
+    if (!listeners.isEmpty()) {
+      iterationDone(done - begin, acc, labels == null ? -1 : acc.changed, palette, next);
+    }
+    return next;
+  }
+
+  /**
+   * Method to pick the first k unique colors in scan order
+   * @param pixels packed 0xRRGGBB pixels
+   * @param number desired number of colors
+   * @return up to number unique packed colors
+   */
+  public static int[] seedFirstUnique(int[] pixels, int number) {
+    // the histogram keeps first-seen order and checks for duplicates in O(1)
+    ColorHistogram seen = new ColorHistogram(number);
+    for (int i = 0; i < pixels.length && seen.size() < number; i++) {
+      seen.add(pixels[i], 1);
+    }
+    return seen.getColors();
+  }
+
+  /**
+   * Method to pick seeds with k-means++ over unique colors.  The first
+   * seed is drawn weighted by pixel count and every next one weighted by
+   * pixel count times squared distance to the closest seed so far.
+   * @param colors distinct packed 0xRRGGBB colors
+   * @param counts pixel count of each color
+   * @param number desired number of seeds
+   * @param seed random seed
+   * @return up to number distinct seeds
+   */
+  public static int[] seedPlusPlus(int[] colors, int[] counts, int number, long seed) {
+    int k = Math.min(number, colors.length);
+    int[] seeds = new int[k];
+    if (k == 0) {
+      return seeds;
+    }
+    SplittableRandom random = new SplittableRandom(seed);
+    long[] dist = new long[colors.length];
+    double total = 0;
+    for (int i = 0; i < colors.length; i++) {
+      dist[i] = Integer.MAX_VALUE;
+      total += counts[i];
+    }
+
+    int pick = draw(counts, null, total, random);
+    for (int s = 0; s < k; s++) {
+      seeds[s] = colors[pick];
+      if (s == k - 1) {
+        break;
+      }
+      // shrink every color's distance to the closest seed and sum the weights
+      total = 0;
+      for (int i = 0; i < colors.length; i++) {
+        int d = distance(colors[i], seeds[s]);
+        if (d < dist[i]) {
+          dist[i] = d;
+        }
+        total += (double) counts[i] * dist[i];
+      }
+      pick = draw(counts, dist, total, random);
+    }
+    return seeds;
+  }
+
+  /**
+   * Method to draw an index with probability proportional to its weight
+   * @param counts pixel count of each color
+   * @param dist squared distance of each color, or null to use counts only
+   * @param total the sum of all the weights
+   * @param random the random numbers to use
+   * @return the index drawn
+   */
+  private static int draw(int[] counts, long[] dist, double total, SplittableRandom random) {
+    double target = random.nextDouble() * total;
+    int last = -1;
+    for (int i = 0; i < counts.length; i++) {
+      double weight = dist == null ? counts[i] : (double) counts[i] * dist[i];
+      if (weight > 0) {
+        last = i;
+        target -= weight;
+        if (target < 0) {
+          return i;
+        }
+      }
+    }
+    // rounding can leave a little of the total, the last candidate takes it
+    return last;
+  }
+
+  /**
+   * Method to assign every pixel to its closest centroid and average
+   * each cluster into a new centroid.  Only a running sum and count is
+   * kept per cluster, so memory does not grow with the image.
+   * @param pixels packed 0xRRGGBB pixels
+   * @param palette current centroids as packed colors
+   * @return the new centroids as packed colors, same length as palette
+   */
+  public int[] recluster(int[] pixels, int[] palette) {
+    return update(assign(pixels, null, palette, null, null, false), palette);
+  }
+
+  /**
+   * Method to average the R G B of each cluster into a new centroid.
+   * A cluster that got no pixels is reseeded with the pixel that lies
+   * farthest from its centroid in the most spread out cluster, so the
+   * palette keeps its size and its indexes.  If every pixel already sits
+   * on a centroid the old centroid is kept.
+   * @param acc the merged sums and counts of every cluster
+   * @param palette the centroids the pixels were assigned to
+   * @return the new centroids as packed colors
+   */
+  static int[] update(Accumulator acc, int[] palette) {
+    int k = palette.length;
+    long[] sums = acc.sums;
+    long[] counts = acc.counts;
+    int[] next = new int[k];
+    int empty = 0;
+
+    for (int c = 0; c < k; c++) {
+      if (counts[c] == 0) {
+        next[c] = -1;
+        empty++;
+        continue;
+      }
+      next[c] = pack((int) (sums[c * 3] / counts[c]),
+                     (int) (sums[c * 3 + 1] / counts[c]),
+                     (int) (sums[c * 3 + 2] / counts[c]));
+    }
+    if (empty > 0) {
+      reseed(acc, palette, next);
+    }
+    return next;
+  }
+
+  /**
+   * Method to fill the empty (-1) slots of a new palette with the
+   * farthest pixels of the other clusters, most distant first
+   * @param acc the merged accumulator with the farthest pixel per cluster
+   * @param palette the centroids the pixels were assigned to
+   * @param next the new centroids, empty clusters marked with -1
+   */
+  static void reseed(Accumulator acc, int[] palette, int[] next) {
+    int k = palette.length;
+    boolean[] used = new boolean[k];
+
+    for (int c = 0; c < k; c++) {
+      if (next[c] != -1) {
+        continue;
+      }
+      next[c] = palette[c];
+
+      // take the most distant pixel left that is not already a centroid
+      while (true) {
+        int far = -1;
+        for (int j = 0; j < k; j++) {
+          if (!used[j] && acc.farthestDist[j] > 0
+              && (far == -1 || acc.farthestDist[j] > acc.farthestDist[far])) {
+            far = j;
+          }
+        }
+        if (far == -1) {
+          break;
+        }
+        used[far] = true;
+        if (indexOf(next, acc.farthest[far]) == -1) {
+          next[c] = acc.farthest[far];
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Method to find a packed color in a palette
+   * @param palette packed palette colors
+   * @param rgb packed color to look for
+   * @return the index of the color or -1 if it is not there
+   */
+  static int indexOf(int[] palette, int rgb) {
+    for (int i = 0; i < palette.length; i++) {
+      if (palette[i] == rgb) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Method to run the assignment step, in parallel when there is more
+   * than one chunk of points
+   * @param points packed 0xRRGGBB colors
+   * @param weights number of pixels per point, or null for one each
+   * @param palette current centroids as packed colors
+   * @param bounds distance bounds prepared for the palette, or null
+   * @param labels cluster of every point to update and count changes
+   *   against, or null (the bounds keep their own labels)
+   * @param stoppable true to give up at the next chunk once the run has
+   *   to stop, leaving the accumulator marked stopped
+   * @return the merged sums and counts of every cluster
+   */
+  Accumulator assign(int[] points, int[] weights, int[] palette, Bounds bounds, int[] labels,
+                     boolean stoppable) {
+    // one nearest-color search per iteration, shared by all the tasks
+    PaletteSearch search = bounds == null ? PaletteSearch.forPalette(palette) : null;
+    AssignTask task = new AssignTask(points, weights, palette, search, bounds,
+                                     bounds == null ? labels : null, stoppable ? this : null,
+                                     0, points.length);
+    if (parallelism == 1 || points.length <= CHUNK_SIZE) {
+      return task.compute();
+    }
+    return getPool().invoke(task);
+  }
+
+  /**
+   * Method to replace every pixel with its closest palette color
+   * @param pixels packed 0xRRGGBB pixels
+   * @param palette packed palette colors
+   * @param target array to write the mapped pixels into (may be pixels)
+   */
+  public static void map(int[] pixels, int[] palette, int[] target) {
+    PaletteSearch search = searchFor(pixels.length, palette);
+    for (int i = 0; i < pixels.length; i++) {
+      target[i] = palette[search.nearest(pixels[i])];
+    }
+  }
+
+  /**
+   * Class method to pick how to look up the palette entries of an image.
+   * Big images pay back building (or reusing) an InverseColorMap, smaller
+   * ones search the palette directly.
+   * @param pixels number of pixels to be looked up
+   * @param palette packed palette colors
+   * @return a search giving the closest palette index of a color
+   */
+  static PaletteSearch searchFor(int pixels, int[] palette) {
+    if (pixels >= LOOKUP_TABLE_PIXELS && palette.length > PaletteSearch.LINEAR_LIMIT) {
+      return InverseColorMap.forPalette(palette)::lookup;
+    }
+    return PaletteSearch.forPalette(palette);
+  }
+
+  /**
+   * Method to find the palette entry closest to a color.  Ties go to the
+   * lowest index.
+   * @param rgb packed 0xRRGGBB color
+   * @param palette packed palette colors
+   * @return index of the closest palette entry
+   */
+  public static int nearest(int rgb, int[] palette) {
+    int best = 0;
+    int bestDist = Integer.MAX_VALUE;
+    for (int i = 0; i < palette.length; i++) {
+      int dist = distance(rgb, palette[i]);
+      if (dist < bestDist) {
+        bestDist = dist;
+        best = i;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Method to compute the squared distance between two packed colors
+   * @param rgb1 first packed 0xRRGGBB color
+   * @param rgb2 second packed 0xRRGGBB color
+   * @return the distance between them without square root
+   */
+  public static int distance(int rgb1, int rgb2) {
+    int dr = ((rgb1 >> 16) & 0xFF) - ((rgb2 >> 16) & 0xFF);
+    int dg = ((rgb1 >> 8) & 0xFF) - ((rgb2 >> 8) & 0xFF);
+    int db = (rgb1 & 0xFF) - (rgb2 & 0xFF);
+    return dr * dr + dg * dg + db * db;
+  }
+
+  /**
+   * Method to pack red, green and blue values into one int
+   * @return the packed 0xRRGGBB color
+   */
+  public static int pack(int red, int green, int blue) {
+    return (red << 16) | (green << 8) | blue;
+  }
+
+  /**
+   * Running sums of R, G and B and pixel counts for each cluster, plus
+   * the pixel farthest from each centroid for reseeding empty clusters
+   * and the inertia and changed pixels reported to listeners
+   */
+  static class Accumulator {
+    final long[] sums;
+    final long[] counts;
+    final int[] farthest;
+    final int[] farthestDist;
+    long skipped = 0;
+    long inertia = 0;
+    long changed = 0;
+    boolean stopped = false;
+
+    Accumulator(int k) {
+      sums = new long[k * 3];
+      counts = new long[k];
+      farthest = new int[k];
+      farthestDist = new int[k];
+    }
+
+    /**
+     * Method to add pixels of one color to a cluster
+     * @param c index of the cluster
+     * @param rgb packed 0xRRGGBB color of the pixels
+     * @param dist squared distance from the color to the centroid
+     * @param weight number of pixels with that color
+     */
+    void add(int c, int rgb, int dist, int weight) {
+      sums[c * 3] += (long) ((rgb >> 16) & 0xFF) * weight;
+      sums[c * 3 + 1] += (long) ((rgb >> 8) & 0xFF) * weight;
+      sums[c * 3 + 2] += (long) (rgb & 0xFF) * weight;
+      counts[c] += weight;
+      inertia += (long) dist * weight;
+      if (dist > farthestDist[c]) {
+        farthestDist[c] = dist;
+        farthest[c] = rgb;
+      }
+    }
+
+    /**
+     * Method to merge another accumulator into this one
+     * @param other the accumulator to add
+     */
+    void merge(Accumulator other) {
+      for (int i = 0; i < sums.length; i++) {
+        sums[i] += other.sums[i];
+      }
+      skipped += other.skipped;
+      inertia += other.inertia;
+      changed += other.changed;
+      stopped |= other.stopped;
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += other.counts[i];
+        // strictly greater keeps the earlier pixel on ties
+        if (other.farthestDist[i] > farthestDist[i]) {
+          farthestDist[i] = other.farthestDist[i];
+          farthest[i] = other.farthest[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * Fork/join task that assigns a range of points to their closest
+   * centroids.  Ranges are split at fixed chunk boundaries and merged left
+   * to right.
+   */
+  static class AssignTask extends RecursiveTask<Accumulator> {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] points;
+    private final int[] weights;
+    private final int[] palette;
+    private final PaletteSearch search;
+    private final Bounds bounds;
+    private final int[] labels;
+    private final KMeans run;
+    private final int from;
+    private final int to;
+
+    AssignTask(int[] points, int[] weights, int[] palette, PaletteSearch search,
+               Bounds bounds, int[] labels, KMeans run, int from, int to) {
+      this.points = points;
+      this.weights = weights;
+      this.palette = palette;
+      this.search = search;
+      this.bounds = bounds;
+      this.labels = labels;
+      this.run = run;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected Accumulator compute() {
+      if (to - from <= CHUNK_SIZE) {
+        Accumulator acc = new Accumulator(palette.length);
+        if (run != null && run.isStopping()) {
+          acc.stopped = true;
+          return acc;
+        }
+        if (bounds != null) {
+          bounds.assign(points, weights, palette, from, to, acc);
+          return acc;
+        }
+        for (int i = from; i < to; i++) {
+          int rgb = points[i];
+          int c = search.nearest(rgb);
+          int weight = weights == null ? 1 : weights[i];
+          acc.add(c, rgb, distance(rgb, palette[c]), weight);
+          if (labels != null && labels[i] != c) {
+            labels[i] = c;
+            acc.changed += weight;
+          }
+        }
+        return acc;
+      }
+      // split on a chunk boundary so the tree only depends on the input size
+      int chunks = (to - from + CHUNK_SIZE - 1) / CHUNK_SIZE;
+      int mid = from + (chunks / 2) * CHUNK_SIZE;
+      AssignTask left = new AssignTask(points, weights, palette, search, bounds, labels, run, from, mid);
+      AssignTask right = new AssignTask(points, weights, palette, search, bounds, labels, run, mid, to);
+      right.fork();
+      Accumulator result = left.compute();
+      result.merge(right.join());
+      return result;
+    }
+  }
+
+  /**
+   * Hamerly distance bounds.  For each point the index of its centroid
+   * and a lower bound on the distance to any other centroid are kept.
+   * Bounds are floats rounded away from the true value (lower bounds
+   * down, centroid moves up) so a skip is always exact.
+   */
+  static class Bounds {
+    /** centroid of each point, -1 before the first full scan */
+    final int[] labels;
+
+    /** lower bound on the distance from each point to its second centroid */
+    final float[] lower;
+
+    /** half the distance from each centroid to its closest other centroid */
+    float[] half = new float[0];
+
+    /** largest and second largest centroid move of the last update */
+    float maxMove = 0;
+    float secondMove = 0;
+
+    /** centroid that moved the most in the last update */
+    int maxMoved = -1;
+
+    /** tree over the palette for the full scans of large palettes */
+    KdTreePaletteSearch tree = null;
+
+    /** centroids of the last update, which the bounds can be carried to,
+     *  null if the bounds are not complete */
+    int[] centroids = null;
+
+    Bounds(int n) {
+      labels = new int[n];
+      Arrays.fill(labels, -1);
+      lower = new float[n];
+    }
+
+    /**
+     * Method to forget every label so the next assignment is a full scan
+     */
+    void reset() {
+      Arrays.fill(labels, -1);
+      maxMove = 0;
+      secondMove = 0;
+      maxMoved = -1;
+      centroids = null;
+    }
+
+    /**
+     * Method to compute the centroid-to-centroid half distances for a palette
+     * @param palette the centroids about to be assigned to
+     */
+    void prepare(int[] palette) {
+      int k = palette.length;
+      int[] closest = new int[k];
+      Arrays.fill(closest, Integer.MAX_VALUE);
+      for (int a = 0; a < k; a++) {
+        for (int b = a + 1; b < k; b++) {
+          int d = distance(palette[a], palette[b]);
+          closest[a] = Math.min(closest[a], d);
+          closest[b] = Math.min(closest[b], d);
+        }
+      }
+      tree = k > PaletteSearch.LINEAR_LIMIT ? new KdTreePaletteSearch(palette) : null;
+      half = new float[k];
+      for (int c = 0; c < k; c++) {
+        half[c] = closest[c] == Integer.MAX_VALUE ? Float.POSITIVE_INFINITY
+          : Math.nextDown((float) (Math.sqrt(closest[c]) / 2));
+      }
+    }
+
+    /**
+     * Method to remember how far the centroids moved in an update, the
+     * lower bounds are loosened by it on the next assignment
+     * @param from the centroids before the update
+     * @param to the centroids after the update
+     */
+    void moved(int[] from, int[] to) {
+      maxMove = 0;
+      secondMove = 0;
+      maxMoved = -1;
+      for (int c = 0; c < from.length; c++) {
+        float move = Math.nextUp((float) Math.sqrt(distance(from[c], to[c])));
+        if (move > maxMove) {
+          secondMove = maxMove;
+          maxMove = move;
+          maxMoved = c;
+        } else if (move > secondMove) {
+          secondMove = move;
+        }
+      }
+      centroids = to;
+    }
+
+    /**
+     * Method to assign a range of points, skipping the full scan for
+     * points that the bounds prove keep their centroid
+     * @param points packed colors
+     * @param weights number of pixels per point, or null for one each
+     * @param palette current centroids
+     * @param from first point of the range
+     * @param to one past the last point of the range
+     * @param acc accumulator for the range
+     */
+    void assign(int[] points, int[] weights, int[] palette, int from, int to,
+                Accumulator acc) {
+      int k = palette.length;
+      for (int i = from; i < to; i++) {
+        int rgb = points[i];
+        int weight = weights == null ? 1 : weights[i];
+        int a = labels[i];
+
+        if (a >= 0) {
+          // the other centroids may have come closer by at most their move
+          float bound = Math.nextDown(lower[i] - (a == maxMoved ? secondMove : maxMove));
+          lower[i] = bound;
+          float m = Math.max(half[a], bound);
+          int d = distance(rgb, palette[a]);
+
+          // a float squared fits a double exactly, so this test is exact
+          if (d < (double) m * m) {
+            acc.add(a, rgb, d, weight);
+            acc.skipped += k - 1;
+            continue;
+          }
+        }
+
+        // full search for the closest and second closest centroids
+        int best = 0;
+        int bestDist = Integer.MAX_VALUE;
+        int secondDist = Integer.MAX_VALUE;
+        if (tree != null) {
+          long two = tree.nearestTwo(rgb);
+          best = KdTreePaletteSearch.indexOf(two);
+          bestDist = KdTreePaletteSearch.distanceOf(two);
+          secondDist = KdTreePaletteSearch.secondDistanceOf(two);
+          if (secondDist == KdTreePaletteSearch.NO_SECOND) {
+            secondDist = Integer.MAX_VALUE;
+          }
+        } else {
+          for (int c = 0; c < k; c++) {
+            int d = distance(rgb, palette[c]);
+            if (d < bestDist) {
+              secondDist = bestDist;
+              bestDist = d;
+              best = c;
+            } else if (d < secondDist) {
+              secondDist = d;
+            }
+          }
+        }
+        if (a != best) {
+          labels[i] = best;
+          acc.changed += weight;
+        }
+        lower[i] = secondDist == Integer.MAX_VALUE ? Float.POSITIVE_INFINITY
+          : Math.nextDown((float) Math.sqrt(secondDist));
+        acc.add(best, rgb, bestDist, weight);
+      }
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/**
+ * An interface for watching a k-means run converge.  A listener added to
+ * a KMeans is told about every iteration and about the whole run when it
+ * ends.  Listeners are called on the thread that runs computePalette, so
+ * they should be quick; both methods do nothing by default.
+ */
+
+public interface KMeansListener {
+
+  /**
+   * Method called after every assignment and update step (every batch in
+   * mini-batch mode)
+   * @param iteration what the step did
+   */
+  default void iterationDone(Iteration iteration) {
+  }
+
+  /**
+   * Method called when a run has stopped, converged or not
+   * @param run totals for the run
+   */
+  default void runDone(Run run) {
+  }
+
+  /**
+   * What one iteration did
+   */
+  class Iteration {
+    private final int number;
+    private final long nanos;
+    private final long inertia;
+    private final long changed;
+    private final int emptyClusters;
+    private final double maxDrift;
+    private final double meanDrift;
+    private final long skippedDistances;
+    private final int[] palette;
+
+    Iteration(int number, long nanos, long inertia, long changed, int emptyClusters,
+              double maxDrift, double meanDrift, long skippedDistances, int[] palette) {
+      this.number = number;
+      this.nanos = nanos;
+      this.inertia = inertia;
+      this.changed = changed;
+      this.emptyClusters = emptyClusters;
+      this.maxDrift = maxDrift;
+      this.meanDrift = meanDrift;
+      this.skippedDistances = skippedDistances;
+      this.palette = palette;
+    }
+
+    /**
+     * Method to get which iteration this was
+     * @return the iteration, counting from 1
+     */
+    public int getNumber() {
+      return number;
+    }
+
+    /**
+     * Method to get the wall time of the iteration
+     * @return the time in nanoseconds
+     */
+    public long getNanos() {
+      return nanos;
+    }
+
+    /**
+     * Method to get the sum of squared distances from every pixel to the
+     * centroid it was assigned to
+     * @return the inertia before the update
+     */
+    public long getInertia() {
+      return inertia;
+    }
+
+    /**
+     * Method to get the number of pixels whose cluster changed.  On the
+     * first iteration every pixel counts as changed.
+     * @return the pixels, -1 in mini-batch mode where it is not tracked
+     */
+    public long getChangedPixels() {
+      return changed;
+    }
+
+    /**
+     * Method to get the number of clusters that got no pixels and were
+     * reseeded
+     * @return the empty clusters
+     */
+    public int getEmptyClusters() {
+      return emptyClusters;
+    }
+
+    /**
+     * Method to get the distance the centroid that moved most moved
+     * @return the largest move in RGB units
+     */
+    public double getMaxDrift() {
+      return maxDrift;
+    }
+
+    /**
+     * Method to get the average distance the centroids moved
+     * @return the average move in RGB units
+     */
+    public double getMeanDrift() {
+      return meanDrift;
+    }
+
+    /**
+     * Method to get how many distances the HAMERLY bounds skipped
+     * @return the skipped distance evaluations, 0 for LLOYD
+     */
+    public long getSkippedDistances() {
+      return skippedDistances;
+    }
+
+    /**
+     * Method to get the centroids after the update
+     * @return a copy of the packed 0xRRGGBB colors
+     */
+    public int[] getPalette() {
+      return palette.clone();
+    }
+  }
+
+  /**
+   * Totals for one run of computePalette
+   */
+  class Run {
+    private final int iterations;
+    private final long seedingNanos;
+    private final long assignmentNanos;
+    private final long updateNanos;
+    private final long pixels;
+    private final int points;
+    private final long inertia;
+    private final int[] palette;
+    private final KMeansResult.StopReason stopReason;
+
+    Run(int iterations, long seedingNanos, long assignmentNanos, long updateNanos,
+        long pixels, int points, long inertia, int[] palette, KMeansResult.StopReason stopReason) {
+      this.iterations = iterations;
+      this.seedingNanos = seedingNanos;
+      this.assignmentNanos = assignmentNanos;
+      this.updateNanos = updateNanos;
+      this.pixels = pixels;
+      this.points = points;
+      this.inertia = inertia;
+      this.palette = palette;
+      this.stopReason = stopReason;
+    }
+
+    /**
+     * Method to get why the run stopped
+     * @return the stop reason
+     */
+    public KMeansResult.StopReason getStopReason() {
+      return stopReason;
+    }
+
+    /**
+     * Method to get the number of iterations
+     * @return the iterations (batches in mini-batch mode)
+     */
+    public int getIterations() {
+      return iterations;
+    }
+
+    /**
+     * Method to get the time spent choosing the seeds
+     * @return the time in nanoseconds
+     */
+    public long getSeedingNanos() {
+      return seedingNanos;
+    }
+
+    /**
+     * Method to get the time spent assigning pixels to centroids, over
+     * all the iterations
+     * @return the time in nanoseconds
+     */
+    public long getAssignmentNanos() {
+      return assignmentNanos;
+    }
+
+    /**
+     * Method to get the time spent averaging and reseeding centroids,
+     * over all the iterations
+     * @return the time in nanoseconds
+     */
+    public long getUpdateNanos() {
+      return updateNanos;
+    }
+
+    /**
+     * Method to get the number of pixels the palette was computed for
+     * @return the pixels (sampled pixels in mini-batch mode)
+     */
+    public long getPixels() {
+      return pixels;
+    }
+
+    /**
+     * Method to get the number of points visited per iteration, which is
+     * the unique colors in histogram mode and the pixels otherwise
+     * @return the points
+     */
+    public int getPoints() {
+      return points;
+    }
+
+    /**
+     * Method to get the lowest inertia measured in the run
+     * @return the sum of squared distances, -1 if no iteration completed
+     */
+    public long getInertia() {
+      return inertia;
+    }
+
+    /**
+     * Method to get the final palette
+     * @return a copy of the packed 0xRRGGBB colors
+     */
+    public int[] getPalette() {
+      return palette.clone();
+    }
+  }
+}
@@ -0,0 +1,200 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A KMeansListener that keeps running totals over every run it is added
+ * to, so one instance can be shared by all the k-means of a batch.  The
+ * totals can be read through JMX after register, or as a map of metric
+ * names to values with snapshot, which a Micrometer-style registry can
+ * bind as gauges.
+ */
+
+public class KMeansMetrics implements KMeansListener, KMeansMetricsMBean {
+
+  /** prefix of the metric names in snapshot */
+  public static final String PREFIX = "kmeans.";
+
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong iterations = new AtomicLong();
+  private final AtomicLong pixels = new AtomicLong();
+  private final AtomicLong seedingNanos = new AtomicLong();
+  private final AtomicLong assignmentNanos = new AtomicLong();
+  private final AtomicLong updateNanos = new AtomicLong();
+  private final AtomicLong emptyClusters = new AtomicLong();
+
+  /** values of the latest iteration or run, from whichever thread was last */
+  private volatile long lastInertia = 0;
+  private volatile long lastChanged = 0;
+  private volatile double lastMaxDrift = 0;
+  private volatile int lastIterations = 0;
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to add an iteration to the totals
+   * @param iteration what the iteration did
+   */
+  public void iterationDone(Iteration iteration) {
+    emptyClusters.addAndGet(iteration.getEmptyClusters());
+    lastInertia = iteration.getInertia();
+    lastChanged = iteration.getChangedPixels();
+    lastMaxDrift = iteration.getMaxDrift();
+  }
+
+  /**
+   * Method to add a run to the totals
+   * @param run totals for the run
+   */
+  public void runDone(Run run) {
+    runs.incrementAndGet();
+    iterations.addAndGet(run.getIterations());
+    pixels.addAndGet(run.getPixels());
+    seedingNanos.addAndGet(run.getSeedingNanos());
+    assignmentNanos.addAndGet(run.getAssignmentNanos());
+    updateNanos.addAndGet(run.getUpdateNanos());
+    lastIterations = run.getIterations();
+  }
+
+  /**
+   * Method to get the number of runs
+   * @return the runs
+   */
+  public long getRuns() {
+    return runs.get();
+  }
+
+  /**
+   * Method to get the iterations over all the runs
+   * @return the iterations
+   */
+  public long getIterations() {
+    return iterations.get();
+  }
+
+  /**
+   * Method to get the pixels clustered over all the runs
+   * @return the pixels
+   */
+  public long getPixels() {
+    return pixels.get();
+  }
+
+  /**
+   * Method to get the time spent seeding
+   * @return the time in nanoseconds
+   */
+  public long getSeedingNanos() {
+    return seedingNanos.get();
+  }
+
+  /**
+   * Method to get the time spent in assignment steps
+   * @return the time in nanoseconds
+   */
+  public long getAssignmentNanos() {
+    return assignmentNanos.get();
+  }
+
+  /**
+   * Method to get the time spent in update steps
+   * @return the time in nanoseconds
+   */
+  public long getUpdateNanos() {
+    return updateNanos.get();
+  }
+
+  /**
+   * Method to get the clusters reseeded because they were empty
+   * @return the empty clusters
+   */
+  public long getEmptyClusters() {
+    return emptyClusters.get();
+  }
+
+  /**
+   * Method to get the inertia of the latest iteration
+   * @return the inertia
+   */
+  public long getLastInertia() {
+    return lastInertia;
+  }
+
+  /**
+   * Method to get the changed pixels of the latest iteration
+   * @return the changed pixels
+   */
+  public long getLastChangedPixels() {
+    return lastChanged;
+  }
+
+  /**
+   * Method to get the largest centroid move of the latest iteration
+   * @return the largest move in RGB units
+   */
+  public double getLastMaxDrift() {
+    return lastMaxDrift;
+  }
+
+  /**
+   * Method to get the iterations of the latest run
+   * @return the iterations
+   */
+  public int getLastIterations() {
+    return lastIterations;
+  }
+
+  /**
+   * Method to set every total back to zero
+   */
+  public void reset() {
+    runs.set(0);
+    iterations.set(0);
+    pixels.set(0);
+    seedingNanos.set(0);
+    assignmentNanos.set(0);
+    updateNanos.set(0);
+    emptyClusters.set(0);
+    lastInertia = 0;
+    lastChanged = 0;
+    lastMaxDrift = 0;
+    lastIterations = 0;
+  }
+
+  /**
+   * Method to get every metric by name, for example "kmeans.iterations"
+   * @return the metric names and their current values, in a fixed order
+   */
+  public Map<String, Number> snapshot() {
+    Map<String, Number> values = new LinkedHashMap<String, Number>();
+    values.put(PREFIX + "runs", getRuns());
+    values.put(PREFIX + "iterations", getIterations());
+    values.put(PREFIX + "pixels", getPixels());
+    values.put(PREFIX + "seeding.nanos", getSeedingNanos());
+    values.put(PREFIX + "assignment.nanos", getAssignmentNanos());
+    values.put(PREFIX + "update.nanos", getUpdateNanos());
+    values.put(PREFIX + "empty.clusters", getEmptyClusters());
+    values.put(PREFIX + "last.inertia", getLastInertia());
+    values.put(PREFIX + "last.changed.pixels", getLastChangedPixels());
+    values.put(PREFIX + "last.max.drift", getLastMaxDrift());
+    values.put(PREFIX + "last.iterations", getLastIterations());
+    return values;
+  }
+
+  /**
+   * Method to register the metrics with the platform MBean server
+   * @param name the object name, for example "picture:type=KMeans"
+   * @return the object name registered
+   * @throws JMException if the name is invalid or already registered
+   */
+  public ObjectName register(String name) throws JMException {
+    ObjectName objectName = new ObjectName(name);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    server.registerMBean(this, objectName);
+    return objectName;
+  }
+}
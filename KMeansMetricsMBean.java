@@ -0,0 +1,30 @@
+/**
+ * The JMX view of KMeansMetrics, see that class for what each value means
+ */
+
+public interface KMeansMetricsMBean {
+
+  long getRuns();
+
+  long getIterations();
+
+  long getPixels();
+
+  long getSeedingNanos();
+
+  long getAssignmentNanos();
+
+  long getUpdateNanos();
+
+  long getEmptyClusters();
+
+  long getLastInertia();
+
+  long getLastChangedPixels();
+
+  double getLastMaxDrift();
+
+  int getLastIterations();
+
+  void reset();
+}
@@ -0,0 +1,104 @@
+/**
+ * A class that holds the outcome of a k-means run: the palette, why the
+ * run stopped and how far it got.  A run that is stopped early by its
+ * iteration limit, time limit or a cancel still has a usable palette.
+ */
+
+public class KMeansResult {
+
+  /** the reasons a run can stop */
+  public enum StopReason {
+    /** an iteration left every centroid where it was */
+    CONVERGED,
+    /** no centroid moved more than the tolerance */
+    TOLERANCE,
+    /** the maximum number of iterations was reached */
+    MAX_ITERATIONS,
+    /** the inertia stopped going down, the centroids were oscillating */
+    STALLED,
+    /** the time limit ran out */
+    DEADLINE,
+    /** cancel was called */
+    CANCELLED
+  }
+
+  /** the palette as packed 0xRRGGBB colors */
+  private final int[] palette;
+
+  /** why the run stopped */
+  private final StopReason stopReason;
+
+  /** iterations completed */
+  private final int iterations;
+
+  /** lowest inertia measured, -1 if no iteration completed */
+  private final long inertia;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the outcome of a run
+   * @param palette the palette as packed 0xRRGGBB colors
+   * @param stopReason why the run stopped
+   * @param iterations iterations completed
+   * @param inertia lowest inertia measured, -1 if none
+   */
+  public KMeansResult(int[] palette, StopReason stopReason, int iterations, long inertia) {
+    this.palette = palette;
+    this.stopReason = stopReason;
+    this.iterations = iterations;
+    this.inertia = inertia;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to get the palette
+   * @return the packed 0xRRGGBB colors, not copied
+   */
+  public int[] getPalette() {
+    return palette;
+  }
+
+  /**
+   * Method to get why the run stopped
+   * @return the stop reason
+   */
+  public StopReason getStopReason() {
+    return stopReason;
+  }
+
+  /**
+   * Method to tell if the run went all the way to convergence
+   * @return true if it stopped on CONVERGED or TOLERANCE
+   */
+  public boolean isConverged() {
+    return stopReason == StopReason.CONVERGED || stopReason == StopReason.TOLERANCE;
+  }
+
+  /**
+   * Method to get the number of iterations that completed
+   * @return the iterations (batches in mini-batch mode)
+   */
+  public int getIterations() {
+    return iterations;
+  }
+
+  /**
+   * Method to get the lowest sum of squared pixel-to-centroid distances
+   * measured during the run
+   * @return the inertia, -1 if no iteration completed
+   */
+  public long getInertia() {
+    return inertia;
+  }
+
+  /**
+   * Method to describe the result
+   * @return the stop reason and iterations
+   */
+  public String toString() {
+    return "KMeansResult[" + stopReason + " after " + iterations + " iterations, "
+      + palette.length + " colors]";
+  }
+}
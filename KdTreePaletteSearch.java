@@ -0,0 +1,266 @@
+/**
+ * A class that finds the closest palette color with a k-d tree over the
+ * palette.  The tree is stored implicitly in arrays: every range of
+ * entries is split at its median along its widest color axis, and small
+ * ranges are scanned directly.  A search skips every half of the tree
+ * that is farther away along the split axis than the best color found.
+ */
+
+public class KdTreePaletteSearch implements PaletteSearch {
+
+  /** ranges this small are scanned instead of split */
+  private static final int LEAF_SIZE = 6;
+
+  /** packed colors, reordered into the tree layout */
+  private final int[] colors;
+
+  /** palette index of each reordered entry */
+  private final int[] indexes;
+
+  /** bit shift of the split axis of the range whose median is at i */
+  private final byte[] shifts;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the palette to search
+   * @param palette packed 0xRRGGBB palette colors
+   */
+  public KdTreePaletteSearch(int[] palette) {
+    if (palette.length == 0) {
+      throw new IllegalArgumentException("palette is empty");
+    }
+    colors = palette.clone();
+    indexes = new int[palette.length];
+    for (int i = 0; i < indexes.length; i++) {
+      indexes[i] = i;
+    }
+    shifts = new byte[palette.length];
+    build(0, palette.length);
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to find the palette entry closest to a color
+   * @param rgb packed 0xRRGGBB color
+   * @return index of the closest palette entry
+   */
+  public int nearest(int rgb) {
+    return (int) search(rgb, 0, colors.length, NONE);
+  }
+
+  /** best entry before any is compared: largest distance, no index */
+  private static final long NONE = ((long) Integer.MAX_VALUE << 32) | 0xFFFFFFFFL;
+
+  /**
+   * Method to search a range of the tree.  The best entry is passed
+   * around as one long, distance in the high half and palette index in
+   * the low half, so a search allocates nothing.
+   * @param rgb packed color to look for
+   * @param from first entry of the range
+   * @param to one past the last entry of the range
+   * @param best the best entry found so far
+   * @return the best entry after searching the range
+   */
+  private long search(int rgb, int from, int to, long best) {
+    if (to - from <= LEAF_SIZE) {
+      for (int i = from; i < to; i++) {
+        best = consider(rgb, i, best);
+      }
+      return best;
+    }
+    int mid = (from + to) >>> 1;
+    int shift = shifts[mid];
+    int gap = ((rgb >> shift) & 0xFF) - ((colors[mid] >> shift) & 0xFF);
+
+    // go down the side the color is on first, then the other if it can be closer
+    if (gap < 0) {
+      best = consider(rgb, mid, search(rgb, from, mid, best));
+      if (gap * gap <= (int) (best >>> 32)) {
+        best = search(rgb, mid + 1, to, best);
+      }
+    } else {
+      best = consider(rgb, mid, search(rgb, mid + 1, to, best));
+      if (gap * gap <= (int) (best >>> 32)) {
+        best = search(rgb, from, mid, best);
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Method to compare one entry with the best so far.  Comparing the
+   * packed longs puts ties on the lowest palette index.
+   */
+  private long consider(int rgb, int i, long best) {
+    long candidate = ((long) KMeans.distance(rgb, colors[i]) << 32) | indexes[i];
+    return candidate < best ? candidate : best;
+  }
+
+  /** bits of a palette index in a nearestTwo result */
+  private static final int INDEX_BITS = 28;
+
+  /** bits of a squared distance (at most 3*255*255) in a nearestTwo result */
+  private static final int DIST_BITS = 18;
+
+  /** second distance meaning there is no second entry */
+  static final int NO_SECOND = (1 << DIST_BITS) - 1;
+
+  /**
+   * Method to find the closest palette entry and the distance to the
+   * second closest one, for algorithms that keep distance bounds
+   * @param rgb packed 0xRRGGBB color
+   * @return the result packed into a long, read it with the class methods
+   *   indexOf, distanceOf and secondDistanceOf
+   */
+  public long nearestTwo(int rgb) {
+    return search2(rgb, 0, colors.length, -1L >>> (64 - INDEX_BITS - DIST_BITS)
+                   | ((long) NO_SECOND << (INDEX_BITS + DIST_BITS)));
+  }
+
+  /** @return the palette index of a nearestTwo result */
+  public static int indexOf(long two) {
+    return (int) (two & ((1 << INDEX_BITS) - 1));
+  }
+
+  /** @return the squared distance to the closest entry of a nearestTwo result */
+  public static int distanceOf(long two) {
+    return (int) ((two >>> INDEX_BITS) & NO_SECOND);
+  }
+
+  /** @return the squared distance to the second entry, NO_SECOND if none */
+  public static int secondDistanceOf(long two) {
+    return (int) (two >>> (INDEX_BITS + DIST_BITS));
+  }
+
+  /**
+   * Method to search a range of the tree for the two closest entries.
+   * A side is only skipped if it cannot hold even a closer second entry.
+   */
+  private long search2(int rgb, int from, int to, long two) {
+    if (to - from <= LEAF_SIZE) {
+      for (int i = from; i < to; i++) {
+        two = consider2(rgb, i, two);
+      }
+      return two;
+    }
+    int mid = (from + to) >>> 1;
+    int shift = shifts[mid];
+    int gap = ((rgb >> shift) & 0xFF) - ((colors[mid] >> shift) & 0xFF);
+
+    if (gap < 0) {
+      two = consider2(rgb, mid, search2(rgb, from, mid, two));
+      if (gap * gap <= secondDistanceOf(two)) {
+        two = search2(rgb, mid + 1, to, two);
+      }
+    } else {
+      two = consider2(rgb, mid, search2(rgb, mid + 1, to, two));
+      if (gap * gap <= secondDistanceOf(two)) {
+        two = search2(rgb, from, mid, two);
+      }
+    }
+    return two;
+  }
+
+  /**
+   * Method to compare one entry with the two best so far
+   */
+  private long consider2(int rgb, int i, long two) {
+    int dist = KMeans.distance(rgb, colors[i]);
+    long bestMask = (1L << (INDEX_BITS + DIST_BITS)) - 1;
+    long best = two & bestMask;
+    long second = two >>> (INDEX_BITS + DIST_BITS);
+    long candidate = ((long) dist << INDEX_BITS) | indexes[i];
+    if (candidate < best) {
+      second = best >>> INDEX_BITS;
+      best = candidate;
+    } else if (dist < second) {
+      second = dist;
+    }
+    return (second << (INDEX_BITS + DIST_BITS)) | best;
+  }
+
+  /**
+   * Method to arrange a range of entries into a subtree
+   * @param from first entry of the range
+   * @param to one past the last entry of the range
+   */
+  private void build(int from, int to) {
+    if (to - from <= LEAF_SIZE) {
+      return;
+    }
+    int shift = widestAxis(from, to);
+    int mid = (from + to) >>> 1;
+    select(from, to - 1, mid, shift);
+    shifts[mid] = (byte) shift;
+    build(from, mid);
+    build(mid + 1, to);
+  }
+
+  /**
+   * Method to find the color axis a range is most spread along
+   * @return the bit shift of that axis (16 red, 8 green, 0 blue)
+   */
+  private int widestAxis(int from, int to) {
+    int bestShift = 16;
+    int bestRange = -1;
+    for (int shift = 16; shift >= 0; shift -= 8) {
+      int min = 255;
+      int max = 0;
+      for (int i = from; i < to; i++) {
+        int v = (colors[i] >> shift) & 0xFF;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+      }
+      if (max - min > bestRange) {
+        bestRange = max - min;
+        bestShift = shift;
+      }
+    }
+    return bestShift;
+  }
+
+  /**
+   * Method to partially sort a range so the entry at k has the median
+   * value on an axis, smaller values before it and larger after it
+   * (quickselect)
+   */
+  private void select(int lo, int hi, int k, int shift) {
+    while (lo < hi) {
+      int pivot = (colors[(lo + hi) >>> 1] >> shift) & 0xFF;
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (((colors[i] >> shift) & 0xFF) < pivot) {
+          i++;
+        }
+        while (((colors[j] >> shift) & 0xFF) > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(i++, j--);
+        }
+      }
+      if (k <= j) {
+        hi = j;
+      } else if (k >= i) {
+        lo = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Method to swap two entries
+   */
+  private void swap(int i, int j) {
+    int c = colors[i];
+    colors[i] = colors[j];
+    colors[j] = c;
+    int n = indexes[i];
+    indexes[i] = indexes[j];
+    indexes[j] = n;
+  }
+}
@@ -0,0 +1,272 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class that computes a palette with Heckbert's median cut.  One pass
+ * counts the pixels in a 32x32x32 histogram (5 bits per channel) that
+ * also keeps the exact color sums of every bin.  The box around all the
+ * colors is then split at the median of its longest side until there are
+ * k boxes, and each box becomes the average color of its pixels.
+ *
+ * Boxes are picked for splitting by pixel count for the first half of
+ * the splits and by pixel count times volume for the rest, so large
+ * sparse regions of color space get colors too.  The memory is the
+ * histogram, about 900 KB, whatever the size of the image.
+ */
+
+public class MedianCut implements Quantizer {
+
+  /** bits kept per channel in the histogram */
+  private static final int BITS = 5;
+
+  /** bins per channel */
+  private static final int SIDE = 1 << BITS;
+
+  /** the desired number of colors */
+  private final int number;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the number of colors
+   * @param number the desired number of colors
+   */
+  public MedianCut(int number) {
+    if (number < 1) {
+      throw new IllegalArgumentException("number of colors must be at least 1: " + number);
+    }
+    this.number = number;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to get the desired number of colors
+   * @return the number of colors
+   */
+  public int getNumber() {
+    return number;
+  }
+
+  /**
+   * Method to compute a palette by median cut
+   * @param pixels packed 0xRRGGBB pixels
+   * @return up to number packed 0xRRGGBB colors, fewer if the pixels
+   *   fill fewer histogram bins
+   */
+  public int[] computePalette(int[] pixels) {
+    Histogram histogram = new Histogram(pixels);
+    List<Box> boxes = new ArrayList<Box>();
+    Box all = new Box(0, SIDE - 1, 0, SIDE - 1, 0, SIDE - 1);
+    all.shrink(histogram);
+    if (all.count > 0) {
+      boxes.add(all);
+    }
+
+    while (boxes.size() < number) {
+      boolean byVolume = boxes.size() >= number / 2;
+      Box widest = null;
+      double widestScore = 0;
+      for (Box box : boxes) {
+        if (box.isSplittable()) {
+          double score = byVolume ? (double) box.count * box.volume() : box.count;
+          if (widest == null || score > widestScore) {
+            widest = box;
+            widestScore = score;
+          }
+        }
+      }
+      if (widest == null) {
+        break;
+      }
+      boxes.add(widest.split(histogram));
+    }
+
+    int[] palette = new int[boxes.size()];
+    for (int i = 0; i < palette.length; i++) {
+      palette[i] = boxes.get(i).average(histogram);
+    }
+    return palette;
+  }
+
+  /**
+   * Method to compute a palette by median cut
+   * @param pixels packed 0xRRGGBB pixels in row-major order
+   * @param width the width in pixels, not used
+   * @param height the height in pixels, not used
+   * @return up to number packed 0xRRGGBB colors
+   */
+  public int[] computePalette(int[] pixels, int width, int height) {
+    return computePalette(pixels);
+  }
+
+  /**
+   * Method to describe the quantizer
+   * @return the name and number of colors
+   */
+  public String toString() {
+    return "MedianCut[" + number + "]";
+  }
+
+  /**
+   * Class method to find the histogram bin of a color
+   * @param r red bin
+   * @param g green bin
+   * @param b blue bin
+   * @return the index of the bin
+   */
+  private static int bin(int r, int g, int b) {
+    return (r << (2 * BITS)) | (g << BITS) | b;
+  }
+
+  /**
+   * Pixel counts and color sums of every bin
+   */
+  private static class Histogram {
+    final int[] counts = new int[SIDE * SIDE * SIDE];
+    final long[] red = new long[counts.length];
+    final long[] green = new long[counts.length];
+    final long[] blue = new long[counts.length];
+
+    Histogram(int[] pixels) {
+      int shift = 8 - BITS;
+      for (int rgb : pixels) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        int i = bin(r >> shift, g >> shift, b >> shift);
+        counts[i]++;
+        red[i] += r;
+        green[i] += g;
+        blue[i] += b;
+      }
+    }
+  }
+
+  /**
+   * A box of histogram bins, bounds inclusive
+   */
+  private static class Box {
+    int[] low = new int[3];
+    int[] high = new int[3];
+    long count;
+
+    Box(int r0, int r1, int g0, int g1, int b0, int b1) {
+      low[0] = r0;
+      high[0] = r1;
+      low[1] = g0;
+      high[1] = g1;
+      low[2] = b0;
+      high[2] = b1;
+    }
+
+    /**
+     * Method to get the number of bins in the box
+     * @return the volume
+     */
+    long volume() {
+      return (long) (high[0] - low[0] + 1) * (high[1] - low[1] + 1) * (high[2] - low[2] + 1);
+    }
+
+    /**
+     * Method to tell if the box holds more than one bin
+     * @return true if it can be split
+     */
+    boolean isSplittable() {
+      return high[0] > low[0] || high[1] > low[1] || high[2] > low[2];
+    }
+
+    /**
+     * Method to shrink the box to the bins that have pixels and count them
+     * @param histogram the histogram
+     */
+    void shrink(Histogram histogram) {
+      int[] min = {SIDE, SIDE, SIDE};
+      int[] max = {-1, -1, -1};
+      count = 0;
+      for (int r = low[0]; r <= high[0]; r++) {
+        for (int g = low[1]; g <= high[1]; g++) {
+          for (int b = low[2]; b <= high[2]; b++) {
+            int n = histogram.counts[bin(r, g, b)];
+            if (n > 0) {
+              count += n;
+              min[0] = Math.min(min[0], r);
+              max[0] = Math.max(max[0], r);
+              min[1] = Math.min(min[1], g);
+              max[1] = Math.max(max[1], g);
+              min[2] = Math.min(min[2], b);
+              max[2] = Math.max(max[2], b);
+            }
+          }
+        }
+      }
+      if (count > 0) {
+        low = min;
+        high = max;
+      }
+    }
+
+    /**
+     * Method to split the box at the median of its longest side.  This
+     * box keeps the lower part.
+     * @param histogram the histogram
+     * @return the upper part
+     */
+    Box split(Histogram histogram) {
+      int axis = 0;
+      for (int a = 1; a < 3; a++) {
+        if (high[a] - low[a] > high[axis] - low[axis]) {
+          axis = a;
+        }
+      }
+      // pixels in each slice across the longest side
+      long[] slices = new long[high[axis] - low[axis] + 1];
+      for (int r = low[0]; r <= high[0]; r++) {
+        for (int g = low[1]; g <= high[1]; g++) {
+          for (int b = low[2]; b <= high[2]; b++) {
+            int position = axis == 0 ? r : axis == 1 ? g : b;
+            slices[position - low[axis]] += histogram.counts[bin(r, g, b)];
+          }
+        }
+      }
+      // the last slice of the lower part is where half the pixels are
+      // reached, but both parts keep at least one slice
+      int cut = 0;
+      long seen = slices[0];
+      while (cut < slices.length - 2 && seen * 2 < count) {
+        cut++;
+        seen += slices[cut];
+      }
+
+      Box upper = new Box(low[0], high[0], low[1], high[1], low[2], high[2]);
+      upper.low[axis] = low[axis] + cut + 1;
+      high[axis] = low[axis] + cut;
+      shrink(histogram);
+      upper.shrink(histogram);
+      return upper;
+    }
+
+    /**
+     * Method to get the average color of the pixels in the box
+     * @param histogram the histogram
+     * @return the packed 0xRRGGBB color
+     */
+    int average(Histogram histogram) {
+      long r = 0;
+      long g = 0;
+      long b = 0;
+      for (int i = low[0]; i <= high[0]; i++) {
+        for (int j = low[1]; j <= high[1]; j++) {
+          for (int k = low[2]; k <= high[2]; k++) {
+            int index = bin(i, j, k);
+            r += histogram.red[index];
+            g += histogram.green[index];
+            b += histogram.blue[index];
+          }
+        }
+      }
+      return KMeans.pack((int) ((r + count / 2) / count), (int) ((g + count / 2) / count),
+                         (int) ((b + count / 2) / count));
+    }
+  }
+}
@@ -0,0 +1,209 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class that computes a palette with the Gervautz-Purgathofer octree.
+ * Every pixel walks down the tree one bit of red, green and blue per
+ * level, and its color is added to the leaf it ends in.  Whenever there
+ * are more than k leaves, the deepest node that has only leaves below it
+ * is folded into a single leaf, so the tree never holds much more than k
+ * leaves and the palette comes out of one pass with bounded memory.
+ * Every leaf becomes the average color of its pixels.
+ */
+
+public class OctreeQuantizer implements Quantizer {
+
+  /** depth of the leaves for single colors, one level per bit */
+  private static final int DEPTH = 8;
+
+  /** the desired number of colors */
+  private final int number;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the number of colors
+   * @param number the desired number of colors
+   */
+  public OctreeQuantizer(int number) {
+    if (number < 1) {
+      throw new IllegalArgumentException("number of colors must be at least 1: " + number);
+    }
+    this.number = number;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to get the desired number of colors
+   * @return the number of colors
+   */
+  public int getNumber() {
+    return number;
+  }
+
+  /**
+   * Method to compute a palette with an octree
+   * @param pixels packed 0xRRGGBB pixels
+   * @return up to number packed 0xRRGGBB colors; folding a node can
+   *   drop several leaves at once, so there may be fewer
+   */
+  public int[] computePalette(int[] pixels) {
+    Tree tree = new Tree(number);
+    for (int rgb : pixels) {
+      tree.add(rgb);
+    }
+    List<Node> leaves = new ArrayList<Node>();
+    tree.root.collect(leaves);
+    int[] palette = new int[leaves.size()];
+    for (int i = 0; i < palette.length; i++) {
+      palette[i] = leaves.get(i).average();
+    }
+    return palette;
+  }
+
+  /**
+   * Method to compute a palette with an octree
+   * @param pixels packed 0xRRGGBB pixels in row-major order
+   * @param width the width in pixels, not used
+   * @param height the height in pixels, not used
+   * @return up to number packed 0xRRGGBB colors
+   */
+  public int[] computePalette(int[] pixels, int width, int height) {
+    return computePalette(pixels);
+  }
+
+  /**
+   * Method to describe the quantizer
+   * @return the name and number of colors
+   */
+  public String toString() {
+    return "OctreeQuantizer[" + number + "]";
+  }
+
+  /**
+   * The tree with a list of the inner nodes at every level
+   */
+  private static class Tree {
+    final Node root = new Node();
+    final int number;
+    int leaves = 0;
+
+    /** inner nodes by level, the most recently made last */
+    final List<List<Node>> inner = new ArrayList<List<Node>>();
+
+    Tree(int number) {
+      this.number = number;
+      for (int level = 0; level < DEPTH; level++) {
+        inner.add(new ArrayList<Node>());
+      }
+      inner.get(0).add(root);
+    }
+
+    /**
+     * Method to add a color, folding nodes while there are too many leaves
+     * @param rgb packed 0xRRGGBB color
+     */
+    void add(int rgb) {
+      Node node = root;
+      for (int level = 0; !node.leaf; level++) {
+        int shift = DEPTH - 1 - level;
+        int index = (((rgb >> (16 + shift)) & 1) << 2) | (((rgb >> (8 + shift)) & 1) << 1)
+          | ((rgb >> shift) & 1);
+        Node child = node.children[index];
+        if (child == null) {
+          child = new Node();
+          node.children[index] = child;
+          if (level + 1 == DEPTH) {
+            child.leaf = true;
+            leaves++;
+          } else {
+            inner.get(level + 1).add(child);
+          }
+        }
+        node = child;
+      }
+      node.add(rgb);
+      while (leaves > number) {
+        fold();
+      }
+    }
+
+    /**
+     * Method to fold the most recent inner node of the deepest level
+     * into a leaf
+     */
+    void fold() {
+      int level = DEPTH - 1;
+      while (inner.get(level).isEmpty()) {
+        level--;
+      }
+      List<Node> nodes = inner.get(level);
+      Node node = nodes.remove(nodes.size() - 1);
+      int children = 0;
+      for (int i = 0; i < 8; i++) {
+        Node child = node.children[i];
+        if (child != null) {
+          node.count += child.count;
+          node.red += child.red;
+          node.green += child.green;
+          node.blue += child.blue;
+          children++;
+        }
+      }
+      node.children = null;
+      node.leaf = true;
+      leaves -= children - 1;
+    }
+  }
+
+  /**
+   * A node of the tree; leaves keep the pixel count and color sums
+   */
+  private static class Node {
+    Node[] children = new Node[8];
+    boolean leaf = false;
+    long count = 0;
+    long red = 0;
+    long green = 0;
+    long blue = 0;
+
+    /**
+     * Method to add a pixel to a leaf
+     * @param rgb packed 0xRRGGBB color
+     */
+    void add(int rgb) {
+      count++;
+      red += (rgb >> 16) & 0xFF;
+      green += (rgb >> 8) & 0xFF;
+      blue += rgb & 0xFF;
+    }
+
+    /**
+     * Method to collect the leaves under this node, children in order
+     * @param leaves where the leaves are added
+     */
+    void collect(List<Node> leaves) {
+      if (leaf) {
+        if (count > 0) {
+          leaves.add(this);
+        }
+        return;
+      }
+      for (Node child : children) {
+        if (child != null) {
+          child.collect(leaves);
+        }
+      }
+    }
+
+    /**
+     * Method to get the average color of the pixels in a leaf
+     * @return the packed 0xRRGGBB color
+     */
+    int average() {
+      return KMeans.pack((int) ((red + count / 2) / count), (int) ((green + count / 2) / count),
+                         (int) ((blue + count / 2) / count));
+    }
+  }
+}
@@ -0,0 +1,246 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A class that does the oil paint effect in time that does not depend on
+ * the radius.  Pixels are put in bins by intensity, and every output
+ * pixel becomes the average color of the most common bin in the square
+ * around it (clipped at the edges of the image).
+ *
+ * Each band of rows keeps a histogram per column of the pixels within
+ * the radius above and below the current row, moved down by adding one
+ * pixel and removing one per column per row.  The window histogram then
+ * slides across the row by adding the column entering on the right and
+ * subtracting the one leaving on the left, so a pixel costs a few passes
+ * over the bins whatever the radius.  Filling the column histograms
+ * costs 2 * radius rows per band, so bands are kept several windows
+ * tall, and the histograms are handed on from band to band instead of
+ * being allocated for each one.
+ */
+
+public class OilPaint {
+
+  /** intensity bins used unless setLevels is called */
+  public static final int DEFAULT_LEVELS = 32;
+
+  /** pixels on each side of the center */
+  private final int radius;
+
+  /** number of intensity bins */
+  private int levels = DEFAULT_LEVELS;
+
+  /** whether rows are processed on the common pool */
+  private boolean parallel = true;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the radius
+   * @param radius the distance from the current pixel to use in the range
+   */
+  public OilPaint(int radius) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("radius must not be negative: " + radius);
+    }
+    this.radius = radius;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to get the number of intensity bins
+   * @return the levels
+   */
+  public int getLevels() {
+    return levels;
+  }
+
+  /**
+   * Method to set the number of intensity bins.  Fewer bins give larger
+   * flat strokes and run a little faster.
+   * @param levels 1 to 256
+   */
+  public void setLevels(int levels) {
+    if (levels < 1 || levels > 256) {
+      throw new IllegalArgumentException("levels must be 1 to 256: " + levels);
+    }
+    this.levels = levels;
+  }
+
+  /**
+   * Method to choose whether rows are processed in parallel
+   * @param parallel false to run on the calling thread only
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  /**
+   * Method to paint a picture
+   * @param source the picture to paint
+   * @return a new picture of the same size
+   */
+  public Picture apply(Picture source) {
+    int width = source.getWidth();
+    int height = source.getHeight();
+    Picture target = new Picture(width, height);
+    target.setPackedPixels(apply(source.getPackedPixels(), width, height));
+    return target;
+  }
+
+  /**
+   * Method to paint packed pixels
+   * @param pixels packed 0xRRGGBB pixels in row-major order
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @return new packed 0xRRGGBB pixels
+   */
+  public int[] apply(int[] pixels, int width, int height) {
+    if (pixels.length != width * height) {
+      throw new IllegalArgumentException("expected " + (width * height) + " pixels but got " + pixels.length);
+    }
+    int[] result = new int[pixels.length];
+    // the bin of every pixel is needed twice per column, work it out once
+    byte[] bins = new byte[pixels.length];
+    RowBands.forEach(height, width, parallel, (from, to) -> {
+      for (int i = from * width; i < to * width; i++) {
+        bins[i] = (byte) bin(pixels[i]);
+      }
+    });
+    // every band fills its column histograms with the 2 * radius rows
+    // around its first row, so bands are kept at least four windows tall
+    int bandWidth = Math.max(1, Math.min(width, RowBands.BAND_PIXELS / (4 * (2 * radius + 1))));
+    int stride = levels * 4;
+    ConcurrentLinkedQueue<int[][]> spare = new ConcurrentLinkedQueue<int[][]>();
+    RowBands.forEach(height, bandWidth, parallel, (from, to) -> {
+      // per column: count, red, green and blue sums of every bin
+      int[][] histograms = spare.poll();
+      if (histograms == null) {
+        histograms = new int[][] {new int[width * stride], new int[stride]};
+      } else {
+        Arrays.fill(histograms[0], 0);
+      }
+      paint(pixels, bins, width, height, from, to, histograms[0], histograms[1], result);
+      spare.add(histograms);
+    });
+    return result;
+  }
+
+  /**
+   * Method to find the intensity bin of a color
+   * @param rgb packed 0xRRGGBB color
+   * @return the bin, 0 to levels - 1
+   */
+  private int bin(int rgb) {
+    int intensity = (((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) + (rgb & 0xFF)) / 3;
+    return intensity * levels >> 8;
+  }
+
+  /**
+   * Method to paint a band of rows
+   * @param pixels packed 0xRRGGBB pixels
+   * @param bins intensity bin of every pixel
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @param from first row of the band
+   * @param to one past the last row of the band
+   * @param columns the column histograms, all zero
+   * @param window room for the window histogram
+   * @param result where the painted pixels are written
+   */
+  private void paint(int[] pixels, byte[] bins, int width, int height, int from, int to,
+                     int[] columns, int[] window, int[] result) {
+    int stride = window.length;
+
+    // fill the column histograms for the first row of the band
+    for (int y = Math.max(0, from - radius); y <= Math.min(height - 1, from + radius); y++) {
+      for (int x = 0; x < width; x++) {
+        add(columns, x * stride, pixels[y * width + x], bins[y * width + x] & 0xFF, 1);
+      }
+    }
+
+    for (int y = from; y < to; y++) {
+      if (y > from) {
+        // move the column histograms down one row
+        int leaving = y - radius - 1;
+        int entering = y + radius;
+        for (int x = 0; x < width; x++) {
+          if (leaving >= 0) {
+            add(columns, x * stride, pixels[leaving * width + x], bins[leaving * width + x] & 0xFF, -1);
+          }
+          if (entering < height) {
+            add(columns, x * stride, pixels[entering * width + x], bins[entering * width + x] & 0xFF, 1);
+          }
+        }
+      }
+
+      Arrays.fill(window, 0);
+      for (int x = 0; x <= Math.min(width - 1, radius); x++) {
+        addColumn(window, columns, x * stride, 1);
+      }
+      for (int x = 0; x < width; x++) {
+        int index = y * width + x;
+        result[index] = mostCommon(window, bins[index] & 0xFF, pixels[index]);
+        if (x + radius + 1 < width) {
+          addColumn(window, columns, (x + radius + 1) * stride, 1);
+        }
+        if (x - radius >= 0) {
+          addColumn(window, columns, (x - radius) * stride, -1);
+        }
+      }
+    }
+  }
+
+  /**
+   * Class method to add a pixel to a histogram, or remove it
+   * @param histogram count, red, green and blue sums of every bin
+   * @param offset where the histogram starts
+   * @param rgb packed 0xRRGGBB color of the pixel
+   * @param bin intensity bin of the pixel
+   * @param sign 1 to add the pixel, -1 to remove it
+   */
+  private static void add(int[] histogram, int offset, int rgb, int bin, int sign) {
+    int i = offset + bin * 4;
+    histogram[i] += sign;
+    histogram[i + 1] += sign * ((rgb >> 16) & 0xFF);
+    histogram[i + 2] += sign * ((rgb >> 8) & 0xFF);
+    histogram[i + 3] += sign * (rgb & 0xFF);
+  }
+
+  /**
+   * Class method to add a column histogram to the window, or subtract it
+   * @param window the window histogram
+   * @param columns the column histograms
+   * @param offset where the column starts
+   * @param sign 1 to add the column, -1 to subtract it
+   */
+  private static void addColumn(int[] window, int[] columns, int offset, int sign) {
+    for (int i = 0; i < window.length; i++) {
+      window[i] += sign * columns[offset + i];
+    }
+  }
+
+  /**
+   * Method to get the average color of the most common bin.  The center
+   * pixel's own bin wins ties, then the darker bin.
+   * @param window the window histogram
+   * @param own the bin of the center pixel
+   * @param rgb the center pixel
+   * @return the packed 0xRRGGBB color
+   */
+  private int mostCommon(int[] window, int own, int rgb) {
+    int best = own;
+    int bestCount = window[own * 4];
+    for (int b = 0; b < levels; b++) {
+      if (window[b * 4] > bestCount) {
+        bestCount = window[b * 4];
+        best = b;
+      }
+    }
+    if (bestCount == 0) {
+      return rgb;
+    }
+    int i = best * 4;
+    return KMeans.pack(window[i + 1] / bestCount, window[i + 2] / bestCount, window[i + 3] / bestCount);
+  }
+}
@@ -0,0 +1,344 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A class that remembers computed palettes so that an image seen before
+ * skips clustering and goes straight to mapping.  Palettes are keyed by
+ * two independent 64-bit hashes of the raster, taken in one cheap pass,
+ * together with the k-means options that change the palette, so two
+ * rasters only share a palette if both hashes collide.  The memory tier is a least-recently-used map
+ * bounded both by entry count and by bytes; an optional directory tier
+ * keeps palettes across restarts.  Hits, misses and evictions are counted.
+ *
+ * With thumbnail keys the hashes are taken over an 8x8 grid of averaged,
+ * coarsened colors instead of the exact raster, so re-encodes and other
+ * sizes of the same image share one palette.
+ */
+
+public class PaletteCache {
+
+  /** how the raster part of a key is computed */
+  public enum KeyMode {
+    /** hash of every pixel, only identical rasters share a palette */
+    EXACT,
+    /** hash of a coarse 8x8 thumbnail, near-identical images share one */
+    THUMBNAIL
+  }
+
+  /** bytes counted per entry on top of its palette */
+  private static final int ENTRY_OVERHEAD = 96;
+
+  /** most entries kept in memory */
+  private final int maxEntries;
+
+  /** most bytes kept in memory */
+  private final long maxBytes;
+
+  /** directory for the disk tier, null for memory only */
+  private File directory = null;
+
+  /** how the raster part of a key is computed */
+  private KeyMode keyMode = KeyMode.EXACT;
+
+  /** palettes by key, least recently used first */
+  private final LinkedHashMap<String, int[]> entries = new LinkedHashMap<String, int[]>(16, 0.75f, true);
+
+  /** bytes of the entries in memory */
+  private long bytes = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong diskHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the memory bounds
+   * @param maxEntries most palettes kept in memory
+   * @param maxBytes most bytes of palettes kept in memory
+   */
+  public PaletteCache(int maxEntries, long maxBytes) {
+    if (maxEntries < 1 || maxBytes < 1) {
+      throw new IllegalArgumentException("cache bounds must be positive");
+    }
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to keep palettes in a directory as well, so they survive a
+   * restart.  Files are named by key and written atomically.
+   * @param directory the directory, null for memory only
+   */
+  public void setDirectory(File directory) {
+    if (directory != null) {
+      directory.mkdirs();
+    }
+    this.directory = directory;
+  }
+
+  /**
+   * Method to choose how the raster part of a key is computed
+   * @param keyMode EXACT (the default) or THUMBNAIL
+   */
+  public void setKeyMode(KeyMode keyMode) {
+    if (keyMode == null) {
+      throw new IllegalArgumentException("key mode must not be null");
+    }
+    this.keyMode = keyMode;
+  }
+
+  /**
+   * Method to get the palette of an image, computing it with the k-means
+   * only if it is not cached
+   * @param pixels packed 0xRRGGBB pixels in row-major order
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @param kmeans the k-means to run on a miss
+   * @return the palette as packed 0xRRGGBB colors
+   */
+  public int[] computePalette(int[] pixels, int width, int height, KMeans kmeans) {
+    String key = key(pixels, width, height, kmeans);
+    int[] palette = get(key);
+    if (palette != null) {
+      return palette;
+    }
+    palette = kmeans.computePalette(pixels);
+    put(key, palette);
+    return palette.clone();
+  }
+
+  /**
+   * Method to compute the key of an image and k-means options
+   * @return the key
+   */
+  public String key(int[] pixels, int width, int height, KMeans kmeans) {
+    long[] hash = keyMode == KeyMode.EXACT ? hash(pixels) : thumbnailHash(pixels, width, height);
+    String raster = keyMode == KeyMode.EXACT ? width + "x" + height : "thumb";
+    return String.format("%016x%016x", hash[0], hash[1]) + "-" + raster + "-" + kmeans.getCacheKey();
+  }
+
+  /**
+   * Method to look up a palette, in memory first and then on disk
+   * @param key the key
+   * @return a copy of the palette, or null on a miss
+   */
+  public int[] get(String key) {
+    synchronized (this) {
+      int[] palette = entries.get(key);
+      if (palette != null) {
+        hits.incrementAndGet();
+        return palette.clone();
+      }
+    }
+    int[] palette = read(key);
+    if (palette != null) {
+      diskHits.incrementAndGet();
+      remember(key, palette);
+      return palette.clone();
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Method to store a palette in memory and, if set, on disk
+   * @param key the key
+   * @param palette the palette
+   */
+  public void put(String key, int[] palette) {
+    remember(key, palette.clone());
+    write(key, palette);
+  }
+
+  /** @return lookups answered from memory */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** @return lookups answered from the disk tier */
+  public long getDiskHits() {
+    return diskHits.get();
+  }
+
+  /** @return lookups that had to cluster */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** @return entries dropped from memory to stay in bounds */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /** @return the number of palettes in memory */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** @return the bytes counted for the palettes in memory */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Method to add an entry to the memory tier and evict the least
+   * recently used ones until both bounds hold
+   */
+  private synchronized void remember(String key, int[] palette) {
+    int[] old = entries.put(key, palette);
+    if (old != null) {
+      bytes -= cost(key, old);
+    }
+    bytes += cost(key, palette);
+    Iterator<Map.Entry<String, int[]>> eldest = entries.entrySet().iterator();
+    while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+      Map.Entry<String, int[]> entry = eldest.next();
+      if (entry.getKey().equals(key) && entries.size() == 1) {
+        break;
+      }
+      bytes -= cost(entry.getKey(), entry.getValue());
+      eldest.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Method to estimate the memory of an entry
+   */
+  private static long cost(String key, int[] palette) {
+    return ENTRY_OVERHEAD + 2L * key.length() + 4L * palette.length;
+  }
+
+  /**
+   * Method to get the disk file of a key
+   */
+  private File file(String key) {
+    return new File(directory, key.replaceAll("[^A-Za-z0-9._-]", "_") + ".pal");
+  }
+
+  /**
+   * Method to read a palette from the disk tier
+   * @return the palette, or null if it is not there or unreadable
+   */
+  private int[] read(String key) {
+    if (directory == null) {
+      return null;
+    }
+    File file = file(key);
+    if (!file.isFile()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      // the full key is stored too, in case two keys map to one file name
+      if (!in.readUTF().equals(key)) {
+        return null;
+      }
+      int[] palette = new int[in.readInt()];
+      for (int i = 0; i < palette.length; i++) {
+        palette[i] = in.readInt();
+      }
+      return palette;
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Method to write a palette to the disk tier, through a temporary file
+   * that is atomically moved over the old one so readers never see half
+   * a palette
+   */
+  private void write(String key, int[] palette) {
+    if (directory == null) {
+      return;
+    }
+    File file = file(key);
+    File temp = null;
+    try {
+      temp = File.createTempFile("palette", ".tmp", directory);
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+        out.writeUTF(key);
+        out.writeInt(palette.length);
+        for (int rgb : palette) {
+          out.writeInt(rgb);
+        }
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      // the disk tier is best effort, the palette is still in memory
+      if (temp != null) {
+        temp.delete();
+      }
+      System.err.println("cannot write palette cache file " + file + ": " + ex);
+    }
+  }
+
+  /**
+   * Class method to hash every pixel with two independent mixes in one
+   * pass: a xor-multiply-xorshift and an add-multiply-xorshift with other
+   * seeds and constants
+   * @param pixels packed pixels
+   * @return the two 64-bit hashes
+   */
+  public static long[] hash(int[] pixels) {
+    long h = 0x9E3779B97F4A7C15L ^ pixels.length;
+    long g = 0xD6E8FEB86659FD93L + ((long) pixels.length << 32);
+    for (int rgb : pixels) {
+      h = (h ^ rgb) * 0xBF58476D1CE4E5B9L;
+      h ^= h >>> 31;
+      g = (g + rgb) * 0x94D049BB133111EBL;
+      g ^= g >>> 29;
+    }
+    return new long[] {h, g};
+  }
+
+  /**
+   * Class method to hash a coarse thumbnail: the image is averaged over an
+   * 8x8 grid and each average is cut to 4 bits per channel
+   * @param pixels packed pixels in row-major order
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @return the two 64-bit hashes
+   */
+  public static long[] thumbnailHash(int[] pixels, int width, int height) {
+    int grid = 8;
+    long[] sums = new long[grid * grid * 3];
+    long[] counts = new long[grid * grid];
+    for (int y = 0; y < height; y++) {
+      int gy = y * grid / height;
+      for (int x = 0; x < width; x++) {
+        int cell = gy * grid + x * grid / width;
+        int rgb = pixels[y * width + x];
+        sums[cell * 3] += (rgb >> 16) & 0xFF;
+        sums[cell * 3 + 1] += (rgb >> 8) & 0xFF;
+        sums[cell * 3 + 2] += rgb & 0xFF;
+        counts[cell]++;
+      }
+    }
+    int[] thumbnail = new int[grid * grid];
+    for (int cell = 0; cell < thumbnail.length; cell++) {
+      long n = Math.max(1, counts[cell]);
+      thumbnail[cell] = KMeans.pack((int) (sums[cell * 3] / n) >> 4,
+                                    (int) (sums[cell * 3 + 1] / n) >> 4,
+                                    (int) (sums[cell * 3 + 2] / n) >> 4);
+    }
+    return hash(thumbnail);
+  }
+}
@@ -0,0 +1,42 @@
+/**
+ * An interface for finding the closest palette entry to a packed
+ * 0xRRGGBB color.  A search is built once for a palette (once per
+ * k-means iteration) and then asked for every pixel.
+ */
+
+public interface PaletteSearch {
+
+  /**
+   * Method to find the palette entry closest to a color.  Ties go to the
+   * lowest index, the same as a linear scan.
+   * @param rgb packed 0xRRGGBB color
+   * @return index of the closest palette entry
+   */
+  int nearest(int rgb);
+
+  /** palettes this small are scanned, a tree does not pay off */
+  int LINEAR_LIMIT = 16;
+
+  /** largest palette scanned with SIMD, bigger ones are faster in a tree */
+  int VECTOR_LIMIT = 512;
+
+  /**
+   * Class method to build the search to use for a palette: a scan for
+   * small palettes, a SIMD scan up to VECTOR_LIMIT colors when the Vector
+   * API is available, and a k-d tree otherwise
+   * @param palette packed 0xRRGGBB palette colors
+   * @return a search over the palette
+   */
+  static PaletteSearch forPalette(int[] palette) {
+    if (palette.length <= LINEAR_LIMIT) {
+      return rgb -> KMeans.nearest(rgb, palette);
+    }
+    if (palette.length <= VECTOR_LIMIT) {
+      PaletteSearch search = VectorSupport.create(palette);
+      if (search != null) {
+        return search;
+      }
+    }
+    return new KdTreePaletteSearch(palette);
+  }
+}
@@ -18,6 +18,12 @@ import java.util.ArrayList;
  */
 
 public class Picture extends SimplePicture { 
+  
+  /** color lists at least this long are searched with a PaletteSearch */
+  private static final int SEARCH_MIN_COLORS = 64;
+  
+  /** the search closestColor built for the last long color list */
+  private static volatile ClosestSearch closestSearch = null;
 
   ///////////////////// constructors ////////////////////////
   
@@ -116,29 +122,85 @@ public class Picture extends SimplePicture {
     return new Picture(this);
   }
   
+  /**
+   * Method to get all the pixels in row-major order as packed 0xRRGGBB
+   * ints, read from the image in one call
+   * @return the packed pixels (alpha removed)
+   */
+  public int[] getPackedPixels() {
+    int width = this.getWidth();
+    int[] pixels = this.getBufferedImage().getRGB(0, 0, width, this.getHeight(), null, 0, width);
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] &= 0xFFFFFF;
+    }
+    return pixels;
+  }
+  
+  /**
+   * Method to set all the pixels from packed 0xRRGGBB ints in row-major order
+   * @param pixels the packed pixels, one per pixel in the picture
+   */
+  public void setPackedPixels(int[] pixels) {
+    int width = this.getWidth();
+    int height = this.getHeight();
+    if (pixels.length != width * height) {
+      throw new IllegalArgumentException("expected " + (width * height) + " pixels but got " + pixels.length);
+    }
+    int[] argb = new int[pixels.length];
+    for (int i = 0; i < pixels.length; i++) {
+      argb[i] = 0xFF000000 | pixels[i];
+    }
+    this.getBufferedImage().setRGB(0, 0, width, height, argb, 0, width);
+  }
+  
+  /**
+   * Class method to turn a list of colors into packed 0xRRGGBB ints
+   * @param colors list of colors
+   * @return the packed colors in the same order
+   */
+  public static int[] toPackedColors(ArrayList<Color> colors) {
+    int[] packed = new int[colors.size()];
+    for (int i = 0; i < packed.length; i++) {
+      packed[i] = colors.get(i).getRGB() & 0xFFFFFF;
+    }
+    return packed;
+  }
+  
+  /**
+   * Class method to turn packed 0xRRGGBB ints into a list of colors
+   * @param packed the packed colors
+   * @return list of colors in the same order
+   */
+  public static ArrayList<Color> toColorList(int[] packed) {
+    ArrayList<Color> colors = new ArrayList<Color>(packed.length);
+    for (int rgb : packed) {
+      colors.add(new Color(rgb));
+    }
+    return colors;
+  }
+  
+  /**
+   * Method to start a chain of pixel operations on this picture.  The
+   * operations are only recorded; run does them all in one pass, for
+   * example picture.chain().negate().grayscaleWithLuminance().run()
+   * @return an empty chain for this picture
+   */
+  public PixelChain chain() {
+    return new PixelChain(this);
+  }
+  
   /**
    * Method to increase the red in a picture.
    */
   public void increaseRed() {
-    Pixel [] pixelArray = this.getPixels();
-    for (Pixel pixelObj : pixelArray) {
-      pixelObj.setRed(pixelObj.getRed()*2);
-    }
+    chain().increaseRed().run();
   }
   
   /**
    * Method to negate a picture
    */
   public void negate() {
-    Pixel [] pixelArray = this.getPixels();
-    int red,green,blue;
-    
-    for (Pixel pixelObj : pixelArray) {
-      red = pixelObj.getRed();
-      green = pixelObj.getGreen();
-      blue = pixelObj.getBlue();
-      pixelObj.setColor(new Color(255-red, 255-green, 255-blue));
-    }
+    chain().negate().run();
   }
   
   /**
@@ -177,30 +239,7 @@ public class Picture extends SimplePicture {
    * Method to decrease the red by half in the current picture
    */
   public void decreaseRed() {
-  
-    Pixel pixel = null; // the current pixel
-    int redValue = 0;       // the amount of red
-
-    // get the array of pixels for this picture object
-    Pixel[] pixels = this.getPixels();
-
-    // start the index at 0
-    int index = 0;
-
-    // loop while the index is less than the length of the pixels array
-    while (index < pixels.length) {
-
-      // get the current pixel at this index
-      pixel = pixels[index];
-      // get the red value at the pixel
-      redValue = pixel.getRed();
-      // set the red value to half what it was
-      redValue = (int) (redValue * 0.5);
-      // set the red for this pixel to the new value
-      pixel.setRed(redValue);
-      // increment the index
-      index++;
-    }
+    chain().decreaseRed().run();
   }
   
   /**
@@ -208,21 +247,7 @@ public class Picture extends SimplePicture {
    * @param amount the amount to change the red by
    */
   public void decreaseRed(double amount) {
- 
-    Pixel[] pixels = this.getPixels();
-    Pixel p = null;
-    int value = 0;
-
-    // loop through all the pixels
-    for (int i = 0; i < pixels.length; i++) {
- 
-      // get the current pixel
-      p = pixels[i];
-      // get the value
-      value = p.getRed();
-      // set the red value the passed amount time what it was
-      p.setRed((int) (value * amount));
-    }
+    chain().decreaseRed(amount).run();
   }
   
   /**
@@ -233,60 +258,35 @@ public class Picture extends SimplePicture {
    * @param targetY target Y position to start at
    */
   public void compose(Picture target, int targetX, int targetY) {
- 
-    Pixel currPixel = null;
-    Pixel newRedPixel = null;
-
-    // loop through the columns
-    for (int srcX=0, trgX = targetX; srcX < this.getWidth();
-         srcX++, trgX++) {
-  
-      // loop through the rows
-      for (int srcY=0, trgY=targetY; srcY < this.getHeight();
-           srcY++, trgY++) {
-
-        // get the current pixel
-        currPixel = this.getPixel(srcX,srcY);
-
-        /* copy the color of currPixel into target,
-         * but only if it'll fit.
-         */
-        if (trgX < target.getWidth() && trgY < target.getHeight()) { // make sure targetX is less than width etc. 
-          newRedPixel = target.getPixel(trgX,trgY);
-          newRedPixel.setColor(currPixel.getColor());
-        }
-      }
-    }
+    // whole rows of the part that fits are copied at once
+    Compositor.compose(this, target, targetX, targetY);
   }
   
   /**
-   * Method to scale the picture by a factor, and return the result
+   * Method to scale the picture by a factor, and return the result.
+   * Shrinking averages the pixels that fall in each new pixel and
+   * enlarging interpolates between the nearest pixels.
    * @param factor the factor to scale by (1.0 stays the same,
    *    0.5 decreases each side by 0.5, 2.0 doubles each side)
    * @return the scaled picture
    */
   public Picture scale(double factor) {
-    
-    Pixel sourcePixel, targetPixel;
-    Picture canvas = new Picture(
-                                 (int) (factor*this.getWidth())+1,
-                                 (int) (factor*this.getHeight())+1);
-    // loop through the columns
-    for (double sourceX = 0, targetX=0;
-         sourceX < this.getWidth();
-         sourceX+=(1/factor), targetX++) {
-      
-      // loop through the rows
-      for (double sourceY=0, targetY=0;
-           sourceY < this.getHeight();
-           sourceY+=(1/factor), targetY++) {
-        
-        sourcePixel = this.getPixel((int) sourceX,(int) sourceY);
-        targetPixel = canvas.getPixel((int) targetX, (int) targetY);
-        targetPixel.setColor(sourcePixel.getColor());
-      }
+    return scale(factor, factor < 1 ? Resampler.Filter.BOX : Resampler.Filter.BILINEAR);
+  }
+  
+  /**
+   * Method to scale the picture by a factor with a given filter
+   * @param factor the factor to scale by, more than 0
+   * @param filter BOX, BILINEAR or LANCZOS
+   * @return the scaled picture, each side rounded to the nearest pixel
+   */
+  public Picture scale(double factor, Resampler.Filter filter) {
+    if (!(factor > 0)) {
+      throw new IllegalArgumentException("factor must be more than 0: " + factor);
     }
-    return canvas;
+    int width = (int) Math.max(1, Math.round(factor * this.getWidth()));
+    int height = (int) Math.max(1, Math.round(factor * this.getHeight()));
+    return new Resampler(filter).apply(this, width, height);
   }
   
   /**
@@ -300,31 +300,7 @@ public class Picture extends SimplePicture {
    */
   public void chromakey(Picture target, Color bgColor, int threshold,
                         int targetX, int targetY) {
- 
-    Pixel currPixel = null;
-    Pixel newRedPixel = null;
-
-    // loop through the columns
-    for (int srcX=0, trgX=targetX;
-        srcX<getWidth() && trgX<target.getWidth();
-        srcX++, trgX++) {
-
-      // loop through the rows
-      for (int srcY=0, trgY=targetY;
-        srcY<getHeight() && trgY<target.getHeight();
-        srcY++, trgY++) {
-
-        // get the current pixel
-        currPixel = this.getPixel(srcX,srcY);
-
-        /* if the color at the current pixel is within threshold of
-         * the input color, then don't copy the pixel
-         */
-        if (currPixel.colorDistance(bgColor)>threshold) {
-          target.getPixel(trgX,trgY).setColor(currPixel.getColor());
-        }
-      }
-    }
+    Compositor.chromakey(this, target, bgColor, threshold, targetX, targetY);
   }
   
     /**
@@ -335,31 +311,9 @@ public class Picture extends SimplePicture {
    */
   public void blueScreen(Picture target,
                         int targetX, int targetY) {
-
-    Pixel currPixel = null;
-    Pixel newRedPixel = null;
-
-    // loop through the columns
-    for (int srcX=0, trgX=targetX;
-         srcX<getWidth() && trgX<target.getWidth();
-         srcX++, trgX++) {
-
-      // loop through the rows
-      for (int srcY=0, trgY=targetY;
-           srcY<getHeight() && trgY<target.getHeight();
-           srcY++, trgY++) {
-
-        // get the current pixel
-        currPixel = this.getPixel(srcX,srcY);
-
-        /* if the color at the current pixel mostly blue (blue value is
-         * greater than red and green combined), then don't copy pixel
-         */
-        if (currPixel.getRed() + currPixel.getGreen() > currPixel.getBlue()) {
-          target.getPixel(trgX,trgY).setColor(currPixel.getColor());
-        }
-      }
-    }
+    // a pixel is copied unless it is mostly blue (blue value is
+    // greater than or equal to red and green combined)
+    Compositor.blueScreen(this, target, targetX, targetY);
   }
   
   /**
@@ -367,156 +321,44 @@ public class Picture extends SimplePicture {
    */
   public void grayscaleWithLuminance()
   {
-    Pixel[] pixelArray = this.getPixels();
-    Pixel pixel = null;
-    int luminance = 0;
-    double redValue = 0;
-    double greenValue = 0;
-    double blueValue = 0;
-
-    // loop through all the pixels
-    for (int i = 0; i < pixelArray.length; i++)
-    {
-      // get the current pixel
-      pixel = pixelArray[i];
-
-      // get the corrected red, green, and blue values
-      redValue = pixel.getRed() * 0.299;
-      greenValue = pixel.getGreen() * 0.587;
-      blueValue = pixel.getBlue() * 0.114;
-
-      // compute the intensity of the pixel (average value)
-      luminance = (int) (redValue + greenValue + blueValue);
-
-      // set the pixel color to the new color
-      pixel.setColor(new Color(luminance,luminance,luminance));
-
-    }
+    chain().grayscaleWithLuminance().run();
   }
   
-  /** 
-   * Method to do an oil paint effect on a picture
+  /**
+   * Method to do an oil paint effect on a picture.  Each pixel becomes
+   * the average color of the most common intensity level in the range;
+   * the time does not grow with the distance.
    * @param dist the distance from the current pixel 
    * to use in the range
    * @return the new picture
    */
   public Picture oilPaint(int dist) {
-    
-    // create the picture to return
-    Picture retPict = new Picture(this.getWidth(),this.getHeight());
-    
-    // declare pixels
-    Pixel currPixel = null;
-    Pixel retPixel = null;
-    
-    // loop through the pixels
-    for (int x = 0; x < this.getWidth(); x++) {
-      for (int y = 0; y < this.getHeight(); y++) {
-        currPixel = this.getPixel(x,y);
-        retPixel = retPict.getPixel(x,y);
-        retPixel.setColor(currPixel.getMostCommonColorInRange(dist));
-      }
-    }
-    return retPict;
+    return new OilPaint(dist).apply(this);
   }
   
   
   /** 
    * Method to modify image by weighting sums of input matrices
-   * created by Delos for SA2
+   * created by Delos for SA2.  Any kernel size works; it is centered on
+   * the middle weight, the edges are extended by repeating the border
+   * pixels and the results are clamped to 0-255.
    * @param matrix weight to convolve image with
    * @return the new picture
    */
   public Picture convolve(float [][] matrix){
-    // first make a copy of the picture
-    Pixel currPixel = null;
-    Pixel targetPixel = null;
-    Picture target = 
-      new Picture(this.getWidth(),this.getHeight()); // target is a pic with same width and height
-    //e.g. (new Picture(10,20)).explore(); all the pixels will be white
-    
-    // loop through X's 
-    for (int srcX = 0, trgX = 0;
-    		srcX < getWidth();
-    		srcX++, trgX++){
-    	// loop through Y's
-    	for (int srcY = 0, trgY = 0;
-    		srcY < getHeight();
-    		srcY++, trgY++){
-    		
-    		// grab the currPixel at the X,Y location
-    		currPixel = this.getPixel(srcX, srcY);
-    		
-    		// variables for surrounding pixels and their colors
-    		Pixel surroundingPixel;
-    		float newRedPixel, newGreenPixel, newBluePixel;
-    		
-    		// do not weight for the pixels around the edges
-    		if (srcX != 0 && srcY != 0 && srcX != this.getWidth() - 1 && srcY != this.getHeight() - 1){
-	    		// top left
-	    		surroundingPixel = this.getPixel(srcX - 1, srcY - 1);
-	    		newRedPixel = surroundingPixel.getRed() * matrix[0][0];
-	    		newGreenPixel = surroundingPixel.getGreen() * matrix[0][0];
-	    		newBluePixel = surroundingPixel.getBlue() * matrix[0][0];
-	    		
-	    		// mid top
-	    		surroundingPixel = this.getPixel(srcX, srcY - 1);
-	    		newRedPixel = newRedPixel + surroundingPixel.getRed() * matrix[0][1];
-	    		newGreenPixel = newGreenPixel + surroundingPixel.getGreen() * matrix[0][1];
-	    		newBluePixel = newBluePixel + surroundingPixel.getBlue() * matrix[0][1];
-	    			
-	    		// right top
-	    		surroundingPixel = this.getPixel(srcX + 1, srcY - 1);
-	    		newRedPixel = newRedPixel + surroundingPixel.getRed() * matrix[0][2];
-	    		newGreenPixel = newGreenPixel + surroundingPixel.getGreen() * matrix[0][2];
-	    		newBluePixel = newBluePixel + surroundingPixel.getBlue() * matrix[0][2];
-	    		
-	    		// mid left
-	    		surroundingPixel = this.getPixel(srcX - 1, srcY);
-	    		newRedPixel = newRedPixel + surroundingPixel.getRed() * matrix[1][0];
-	    		newGreenPixel = newGreenPixel + surroundingPixel.getGreen() * matrix[1][0];
-	    		newBluePixel = newBluePixel + surroundingPixel.getBlue() * matrix[1][0];
-	    		
-	    		// center
-	    		surroundingPixel = this.getPixel(srcX, srcY);
-	    		newRedPixel = newRedPixel + surroundingPixel.getRed() * matrix[1][1];
-	    		newGreenPixel = newGreenPixel + surroundingPixel.getGreen() * matrix[1][1];
-	    		newBluePixel = newBluePixel + surroundingPixel.getBlue() * matrix[1][1];
-	    		
-	    		// mid right
-	    		surroundingPixel = this.getPixel(srcX + 1, srcY);
-	    		newRedPixel = newRedPixel + surroundingPixel.getRed() * matrix[1][2];
-	    		newGreenPixel = newGreenPixel + surroundingPixel.getGreen() * matrix[1][2];
-	    		newBluePixel = newBluePixel + surroundingPixel.getBlue() * matrix[1][2];
-	    		
-	    		// bottom left
-	    		surroundingPixel = this.getPixel(srcX - 1, srcY + 1);
-	    		newRedPixel = newRedPixel + surroundingPixel.getRed() * matrix[2][0];
-	    		newGreenPixel = newGreenPixel + surroundingPixel.getGreen() * matrix[2][0];
-	    		newBluePixel = newBluePixel + surroundingPixel.getBlue() * matrix[2][0];
-	    		
-	    		// bottom mid
-	    		surroundingPixel = this.getPixel(srcX, srcY + 1);
-	    		newRedPixel = newRedPixel + surroundingPixel.getRed() * matrix[2][1];
-	    		newGreenPixel = newGreenPixel + surroundingPixel.getGreen() * matrix[2][1];
-	    		newBluePixel = newBluePixel + surroundingPixel.getBlue() * matrix[2][1];
-	    		
-	    		// bottom right
-	    		surroundingPixel = this.getPixel(srcX + 1, srcY + 1);
-	    		newRedPixel = newRedPixel + surroundingPixel.getRed() * matrix[2][2];
-	    		newGreenPixel = newGreenPixel + surroundingPixel.getGreen() * matrix[2][2];
-	    		newBluePixel = newBluePixel + surroundingPixel.getBlue() * matrix[2][2];
-	    		
-	    		// set the target pixel to the new weighted sum
-	    		targetPixel = target.getPixel(srcX, srcY);
-	    		targetPixel.setRed((int)newRedPixel);
-	    		targetPixel.setGreen((int)newGreenPixel);
-	    		targetPixel.setBlue((int)newBluePixel);
-    		}
-    	}
-    }
-    
-    return target;
+    return new Convolution(matrix).apply(this);
+  }
+  
+  /** 
+   * Method to convolve the image with a given edge mode
+   * @param matrix weight to convolve image with
+   * @param edgeMode how pixels beyond the edges are made up
+   * @return the new picture
+   */
+  public Picture convolve(float [][] matrix, Convolution.EdgeMode edgeMode){
+    Convolution convolution = new Convolution(matrix);
+    convolution.setEdgeMode(edgeMode);
+    return convolution.apply(this);
   }
   
   
@@ -542,37 +384,43 @@ public class Picture extends SimplePicture {
    * @return the distance between them without square root
    */
   public static int computeDistance(Pixel pixel, Color color2){
-	  Color color1 = pixel.getColor();
-	  return (int) (Math.pow(color1.getRed() - color2.getRed(), 2.0) + Math.pow(color1.getGreen() - color2.getGreen(), 2.0) + Math.pow(color1.getBlue() - color2.getBlue(), 2.0));
+	  return KMeans.distance(pixel.getColor().getRGB(), color2.getRGB());
   }
   
   /** 
-   * Method takes in ArrayList of colors and a pixel
+   * Method takes in ArrayList of colors and a pixel.  Lists of 64 colors
+   * or more are searched with the SIMD (or tree) palette search, which
+   * is kept while lists with the same colors in the same order are
+   * passed in, and built again as soon as a color differs.
    * written by Delos
    * @param colors list of colors
    * @param pixel pixel to calculate distance from 
-   * @return closest color to that pixel color
+   * @return closest color to that pixel color (the first one on ties),
+   *   null if the list is empty
    */
   public static Color closestColor(Pixel pixel, ArrayList<Color> colors){
+	  if (colors.isEmpty()){
+		  return null;
+	  }
+	  int rgb = pixel.getColor().getRGB();
 	  
-	  int lowestdist = 0;
-	  Color closestcolor = null;
+	  if (colors.size() >= SEARCH_MIN_COLORS){
+		  ClosestSearch cached = closestSearch;
+		  if (cached == null || !cached.matches(colors)){
+			  cached = new ClosestSearch(toPackedColors(colors));
+			  closestSearch = cached;
+		  }
+		  return colors.get(cached.search.nearest(rgb & 0xFFFFFF));
+	  }
 	  
+	  int lowestdist = Integer.MAX_VALUE;
+	  Color closestcolor = null;
 	  for (Color color : colors){
-		  int calcdist = computeDistance(pixel, color);
-//		  int calcdist = pixel.colorDistance(color); // alternative distance calc with sq rt
-		  
-		  if (lowestdist == 0){
-			  lowestdist = calcdist;
-			  closestcolor = color;
-		  }
-		  
+		  int calcdist = KMeans.distance(rgb, color.getRGB());
 		  if (calcdist < lowestdist){
 			  lowestdist = calcdist;
 			  closestcolor = color;
-//			  System.out.println("lowest "+calcdist);
 		  }
-		  
 	  }
 	  return closestcolor;
   }
@@ -584,34 +432,12 @@ public class Picture extends SimplePicture {
    * @return the new modified picture
    */
   public Picture mapToColorList(ArrayList<Color> colors){
+	  int[] pixels = this.getPackedPixels();
+	  KMeans.map(pixels, toPackedColors(colors), pixels); // set pixel color to closest in list
 	  
-    // first make a copy of the picture
-    Pixel currPixel = null;
-    Pixel targetPixel = null;
-    Picture target = 
-      new Picture(this.getWidth(),this.getHeight()); // target is a pic with same width and height
-    //e.g. (new Picture(10,20)).explore(); all the pixels will be white
-    
-    // loop through X's 
-    for (int srcX = 0, trgX = 0;
-    		srcX < getWidth();
-    		srcX++, trgX++){
-    	// loop through Y's
-    	for (int srcY = 0, trgY = 0;
-    			srcY < getHeight();
-    			srcY++, trgY++){
-
-    		// grab the currPixel at the X,Y location
-    		currPixel = this.getPixel(srcX, srcY);
-    		targetPixel = target.getPixel(srcX, srcY);
-    		
-    		// find the closest color to pixel
-    		Color closestColor = closestColor(currPixel, colors);
-    		targetPixel.setColor(closestColor); // set pixel color to related in list
-    		
-    	}
-    }
-    	return target;
+	  Picture target = new Picture(this.getWidth(),this.getHeight());
+	  target.setPackedPixels(pixels);
+	  return target;
   }
   
   /** 
@@ -621,114 +447,46 @@ public class Picture extends SimplePicture {
    * @return returns a converged color list after reclustering iterations
    */
   public ArrayList<Color> computeColors(int number){
-	  ArrayList<Color> init = new ArrayList<Color>(); // initial centroids
-	  ArrayList<Color> colorListFinal = new ArrayList<Color>(); // final centroids to be returned after clustering
-	  
-	  // a) Random Color List
-//	    for (int i = 0; i < number; i++){
-//		    init.add(randomColorValue());
-//	    }
-	  
-//	   b) First k unique Colors
-	  Pixel [] pixelArray = this.getPixels();
-	  for (Pixel pixel : pixelArray) {
-		  Color pixelColor = pixel.getColor();
-		  
-		  // check for duplicate
-		  if (!init.contains(pixelColor)){
-			  init.add(pixelColor);
-		  } else {
-			  // if duplicate, then skip to next pixel
-			  continue;
-		  }
-		  
-		  // did it hit our alloted color length? then stop.
-		  if (init.size() == number){
-			  break;
-		  }
-	  }
-	  
-	  // Use init list as beginning centroids
-	  ArrayList<Color> current = init;
-	  
-	  colorListFinal = recluster(number, current);  // k-means current and return a final..
-	  
-	  while(!current.equals(colorListFinal)){
-		  System.out.println("colorlistfinal "+colorListFinal);
-		  
-		  current = colorListFinal; // save the list for comparison and recluster 
-		  colorListFinal = recluster(number, current);
-	  }
-	  
-	  System.out.println("CONVERGENCE FINAL "+colorListFinal);
-	  return colorListFinal;
-
+	  return computeColors(new KMeans(number));
   }
   
   /** 
-   * Method clusters colors into a list and calculates a new color list 
-   * by averaging the RGB values
+   * Method to compute list of colors using a configured k-means, for
+   * example one in histogram mode.  Add a ConsoleListener to the k-means
+   * to print the progress.
+   * @param kmeans the k-means to run, with the desired number of clusters
+   * @return returns a converged color list after reclustering iterations
+   */
+  public ArrayList<Color> computeColors(KMeans kmeans){
+	  // k-means on the packed raster, seeded the way kmeans is set up to
+	  int[] palette = kmeans.computePalette(this.getPackedPixels());
+	  return toColorList(palette);
+  }
+  
+  /** 
+   * Method to compute list of colors with any quantizer: k-means, a
+   * coarse-to-fine PyramidQuantizer, or a single-pass MedianCut or
+   * OctreeQuantizer
+   * @param quantizer the quantizer to run
+   * @return returns the color list the quantizer computed
+   */
+  public ArrayList<Color> computeColors(Quantizer quantizer){
+	  int[] palette = quantizer.computePalette(this.getPackedPixels(), this.getWidth(), this.getHeight());
+	  return toColorList(palette);
+  }
+  
+  /** 
+   * Method clusters colors and calculates a new color list by averaging
+   * the RGB values.  Only a running sum and count is kept per cluster and
+   * empty clusters are reseeded, so the list keeps the size of init.
    * written by Delos
    * @param number desired number of clusters
    * @param init initial color list to start clustering with
    * @return reclustered color list based on k-means algo
    */
   public ArrayList<Color> recluster(int number, ArrayList<Color> init){
-	  ArrayList<ArrayList<Color>> clusters = new ArrayList<ArrayList<Color>>(); // inner represents Color list in that cluster
-	  ArrayList<Color> colorListFinal = new ArrayList<Color>(); // returns the reclustered list of colors
-	  
-	  // add appropriate # of empty ArrayList<Color> lists to clusters... 
-	  for (int i = 0; i < number; i++){ 
-		  clusters.add(new ArrayList<Color>());
-	  }
-	  
-	  // iterate and cluster through each pixel
-	  Pixel [] pixelArray = this.getPixels();
-	  for (Pixel pixel : pixelArray) {
-		  Color pixelColor = pixel.getColor();
-		  Color closestColor = closestColor(pixel, init); // pixel's closest color in the list
-		  
-		  // find the index of the color in the list
-		  int closestColorIndex = init.indexOf(closestColor);
-		  
-		  // add the pixel color into the index of the cluster.
-		  clusters.get(closestColorIndex).add(pixelColor);
-	  } 
-	  
-	  // now that we've sorted into clusters,
-	  // we need to average out the R G B and return a new list of centroids
-	  
-	  int redSum = 0;
-	  int greenSum = 0;
-	  int blueSum = 0;
-	  
-	  for (ArrayList<Color> cluster : clusters){
-		  // remove empty clusters, cannot modify while looping
-		  if (cluster.size() == 0 ){
-			  continue;
-		  }
-		  
-		  for (Color color : cluster){
-			  redSum = redSum + color.getRed();
-			  greenSum = greenSum + color.getGreen();
-			  blueSum = blueSum + color.getBlue();
-		  }
-		  
-		  redSum = redSum / cluster.size();
-		  greenSum = greenSum / cluster.size();
-		  blueSum = blueSum / cluster.size();
-		  
-		  Color newCentroid = new Color(redSum, greenSum, blueSum);
-		  
-		  colorListFinal.add(newCentroid);
-		  
-		  // reset values after averaging
-		  redSum = 0;
-		  greenSum = 0;
-		  blueSum = 0;
-	  }
-	  
-	  return colorListFinal;
+	  int[] palette = new KMeans(number).recluster(this.getPackedPixels(), toPackedColors(init));
+	  return toColorList(palette);
   }
   
   
@@ -738,10 +496,46 @@ public class Picture extends SimplePicture {
    * @param number desired number of clusters
    */
   public void reduceColors(int number){
-	  mapToColorList(computeColors(number)).explore();
+	  reduceColors(new KMeans(number));
+  }
+  
+  /** 
+   * Method to reduce the colors with any quantizer and show the result
+   * @param quantizer the quantizer to compute the color list with
+   */
+  public void reduceColors(Quantizer quantizer){
+	  mapToColorList(computeColors(quantizer)).explore();
+  }
+  
+  /** 
+   * Method to reduce the picture to at most 256 colors and keep the
+   * result as palette indexes, a quarter of the memory of a picture
+   * @param number desired number of clusters, 1 to 256
+   * @return the indexed image, which can be written as an indexed PNG or GIF
+   */
+  public IndexedImage reduceColorsIndexed(int number){
+	  return reduceColorsIndexed(new KMeans(number));
   }
   
-  public static void main(String[] args) {
+  /** 
+   * Method to reduce the picture with a configured quantizer and keep the
+   * result as palette indexes
+   * @param quantizer the quantizer to run, for 1 to 256 colors
+   * @return the indexed image
+   */
+  public IndexedImage reduceColorsIndexed(Quantizer quantizer){
+	  int[] pixels = this.getPackedPixels();
+	  int[] palette = quantizer.computePalette(pixels, this.getWidth(), this.getHeight());
+	  return IndexedImage.of(pixels, this.getWidth(), this.getHeight(), palette);
+  }
+  
+  public static void main(String[] args) throws Exception {
+    // with arguments, compress a batch of images without a display
+    if (args.length > 0) {
+      BatchCompressor.main(args);
+      return;
+    }
+    
 	// show original image
     Picture p = 
       new Picture(FileChooser.pickAFile());
@@ -799,9 +593,41 @@ public class Picture extends SimplePicture {
     p.mapToColorList(random256ColorList).explore();
     
     // Test the k-means
-    // Note: to test random and first k unique colors, uncomment code in computeColors method.
-    p.reduceColors(256);
+    // Note: computeColors seeds the k-means with the first k unique colors.
+    KMeans kmeans = new KMeans(256);
+    kmeans.addListener(new ConsoleListener(System.out, true)); // print every color list
+    p.mapToColorList(p.computeColors(kmeans)).explore();
+    
+  }
+  
+  /**
+   * The packed colors of a color list and the search built for them
+   */
+  private static class ClosestSearch {
+    final int[] palette;
+    final PaletteSearch search;
     
+    ClosestSearch(int[] palette) {
+      this.palette = palette;
+      this.search = PaletteSearch.forPalette(palette);
+    }
+    
+    /**
+     * Method to tell if a color list still has the colors searched
+     * @param colors list of colors
+     * @return true if it has the same colors in the same order
+     */
+    boolean matches(ArrayList<Color> colors) {
+      if (colors.size() != palette.length) {
+        return false;
+      }
+      for (int i = 0; i < palette.length; i++) {
+        if ((colors.get(i).getRGB() & 0xFFFFFF) != palette[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
   }
 } 
  
\ No newline at end of file
@@ -0,0 +1,254 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class that records per-pixel operations on a picture and runs them
+ * all in one pass.  Nothing happens to the picture until run is called;
+ * then every pixel is read once, goes through the whole chain in
+ * registers and is written once, with rows split over the common pool.
+ *
+ * Operations that change each channel on its own (negate and the red
+ * changes) are folded into three 256-entry tables as they are added, so
+ * any run of them costs three lookups per pixel.  A grayscale step mixes
+ * the channels and starts a new stage.  The results are the same as
+ * calling the Picture methods one after another, and alpha is kept.
+ */
+
+public class PixelChain {
+
+  /** the picture the chain is run on, null for raw rasters only */
+  private final Picture picture;
+
+  /** the stages in order, each a table stage or a grayscale stage */
+  private final List<Stage> stages = new ArrayList<Stage>();
+
+  /** whether rows are processed on the common pool */
+  private boolean parallel = true;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor for a chain that is only applied to raw rasters
+   */
+  public PixelChain() {
+    this(null);
+  }
+
+  /**
+   * Constructor that takes the picture to run on
+   * @param picture the picture changed by run
+   */
+  public PixelChain(Picture picture) {
+    this.picture = picture;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to add negating every channel
+   * @return this chain
+   */
+  public PixelChain negate() {
+    Stage stage = tables();
+    for (int v = 0; v < 256; v++) {
+      stage.red[v] = 255 - stage.red[v];
+      stage.green[v] = 255 - stage.green[v];
+      stage.blue[v] = 255 - stage.blue[v];
+    }
+    return this;
+  }
+
+  /**
+   * Method to add doubling the red, up to 255
+   * @return this chain
+   */
+  public PixelChain increaseRed() {
+    Stage stage = tables();
+    for (int v = 0; v < 256; v++) {
+      stage.red[v] = clamp(stage.red[v] * 2);
+    }
+    return this;
+  }
+
+  /**
+   * Method to add halving the red
+   * @return this chain
+   */
+  public PixelChain decreaseRed() {
+    Stage stage = tables();
+    for (int v = 0; v < 256; v++) {
+      stage.red[v] = (int) (stage.red[v] * 0.5);
+    }
+    return this;
+  }
+
+  /**
+   * Method to add multiplying the red by an amount
+   * @param amount the amount to multiply the red by
+   * @return this chain
+   */
+  public PixelChain decreaseRed(double amount) {
+    Stage stage = tables();
+    for (int v = 0; v < 256; v++) {
+      stage.red[v] = clamp((int) (stage.red[v] * amount));
+    }
+    return this;
+  }
+
+  /**
+   * Method to add changing to gray scale with luminance
+   * @return this chain
+   */
+  public PixelChain grayscaleWithLuminance() {
+    stages.add(new Stage(null, null, null));
+    return this;
+  }
+
+  /**
+   * Method to choose whether rows are processed in parallel
+   * @param parallel false to run on the calling thread only
+   * @return this chain
+   */
+  public PixelChain setParallel(boolean parallel) {
+    this.parallel = parallel;
+    return this;
+  }
+
+  /**
+   * Method to run the chain on the picture it was made for.  The chain
+   * is kept, so it can be run again or on other rasters.
+   * @return the picture, changed in place
+   */
+  public Picture run() {
+    if (picture == null) {
+      throw new IllegalStateException("this chain has no picture, use apply");
+    }
+    BufferedImage image = picture.getBufferedImage();
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int[] data = directPixels(image);
+    if (data != null) {
+      // the pixels are worked on where they are stored
+      apply(data, width, height);
+    } else {
+      int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+      apply(argb, width, height);
+      image.setRGB(0, 0, width, height, argb, 0, width);
+    }
+    return picture;
+  }
+
+  /**
+   * Method to run the chain on a raster in place
+   * @param argb packed 0xAARRGGBB pixels in row-major order, the alpha
+   *   byte is kept as it is
+   * @param width the width in pixels
+   * @param height the height in pixels
+   */
+  public void apply(int[] argb, int width, int height) {
+    if (argb.length < width * height) {
+      throw new IllegalArgumentException("expected " + (width * height) + " pixels but got " + argb.length);
+    }
+    Stage[] chain = stages.toArray(new Stage[stages.size()]);
+    if (chain.length == 0) {
+      return;
+    }
+    RowBands.forEach(height, width, parallel, (from, to) -> {
+      for (int i = from * width; i < to * width; i++) {
+        int pixel = argb[i];
+        int r = (pixel >> 16) & 0xFF;
+        int g = (pixel >> 8) & 0xFF;
+        int b = pixel & 0xFF;
+        for (Stage stage : chain) {
+          if (stage.red == null) {
+            // weighted red, green and blue, truncated like the Pixel version was
+            int luminance = (int) (r * 0.299 + g * 0.587 + b * 0.114);
+            r = luminance;
+            g = luminance;
+            b = luminance;
+          } else {
+            r = stage.red[r];
+            g = stage.green[g];
+            b = stage.blue[b];
+          }
+        }
+        argb[i] = (pixel & 0xFF000000) | (r << 16) | (g << 8) | b;
+      }
+    });
+  }
+
+  /**
+   * Method to get the table stage at the end of the chain, adding one
+   * if the chain is empty or ends with grayscale
+   * @return the stage to fold the next operation into
+   */
+  private Stage tables() {
+    if (!stages.isEmpty() && stages.get(stages.size() - 1).red != null) {
+      return stages.get(stages.size() - 1);
+    }
+    int[] red = new int[256];
+    int[] green = new int[256];
+    int[] blue = new int[256];
+    for (int v = 0; v < 256; v++) {
+      red[v] = v;
+      green[v] = v;
+      blue[v] = v;
+    }
+    Stage stage = new Stage(red, green, blue);
+    stages.add(stage);
+    return stage;
+  }
+
+  /**
+   * Class method to keep a channel value within 0 to 255, as Pixel does
+   * @param value the value
+   * @return the value clamped to 0 to 255
+   */
+  private static int clamp(int value) {
+    return value < 0 ? 0 : value > 255 ? 255 : value;
+  }
+
+  /**
+   * Class method to get the int array an image keeps its pixels in, when
+   * every int is one 0xRRGGBB or 0xAARRGGBB pixel with no gaps
+   * @param image the image
+   * @return the pixels, or null if the image is stored another way
+   */
+  static int[] directPixels(BufferedImage image) {
+    int type = image.getType();
+    if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) {
+      return null;
+    }
+    if (!(image.getRaster().getDataBuffer() instanceof DataBufferInt)
+        || !(image.getSampleModel() instanceof SinglePixelPackedSampleModel)
+        || image.getRaster().getParent() != null) {
+      return null;
+    }
+    SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) image.getSampleModel();
+    DataBufferInt buffer = (DataBufferInt) image.getRaster().getDataBuffer();
+    if (model.getScanlineStride() != image.getWidth() || buffer.getNumBanks() != 1
+        || buffer.getOffset() != 0) {
+      return null;
+    }
+    return buffer.getData();
+  }
+
+  /**
+   * One step of the chain: three channel tables, or grayscale when the
+   * tables are null
+   */
+  private static class Stage {
+    final int[] red;
+    final int[] green;
+    final int[] blue;
+
+    Stage(int[] red, int[] green, int[] blue) {
+      this.red = red;
+      this.green = green;
+      this.blue = blue;
+    }
+  }
+}
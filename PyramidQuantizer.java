@@ -0,0 +1,198 @@
+/**
+ * A class that computes a palette coarse to fine.  The image is halved
+ * again and again with area averaging (every pixel of a level is the mean
+ * of the 2x2 block under it) until it is small, the k-means converges on
+ * that smallest level, and the palette is then refined with a few passes
+ * at each larger level.  Most of the iterations run on a small proxy, so
+ * only the refine passes touch the full image.
+ *
+ * More refine passes give a palette closer to what the k-means converges
+ * to on the full image; a larger smallest level gives better seeds for
+ * the refine passes.  Averaging blends colors at edges, so the coarse
+ * palette is a little less saturated until the full level pulls it back.
+ * A time limit set on the k-means applies to each level on its own.
+ */
+
+public class PyramidQuantizer implements Quantizer {
+
+  /** pixels in the smallest level unless setMinPixels is called */
+  public static final int DEFAULT_MIN_PIXELS = 1 << 16;
+
+  /** passes at each larger level unless setRefinePasses is called */
+  public static final int DEFAULT_REFINE_PASSES = 2;
+
+  /** the k-means used at every level */
+  private KMeans kmeans;
+
+  /** the image is halved while it has more pixels than this */
+  private int minPixels = DEFAULT_MIN_PIXELS;
+
+  /** most passes at each level above the smallest */
+  private int refinePasses = DEFAULT_REFINE_PASSES;
+
+  /** whether the levels are averaged on the common pool */
+  private boolean parallel = true;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the k-means to run
+   * @param kmeans the k-means, with the desired number of clusters
+   */
+  public PyramidQuantizer(KMeans kmeans) {
+    this.kmeans = kmeans;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to get the size the image is halved down to
+   * @return the most pixels in the smallest level
+   */
+  public int getMinPixels() {
+    return minPixels;
+  }
+
+  /**
+   * Method to set the size the image is halved down to
+   * @param minPixels the most pixels in the smallest level
+   */
+  public void setMinPixels(int minPixels) {
+    if (minPixels < 1) {
+      throw new IllegalArgumentException("min pixels must be at least 1: " + minPixels);
+    }
+    this.minPixels = minPixels;
+  }
+
+  /**
+   * Method to get the most passes at each level above the smallest
+   * @return the refine passes
+   */
+  public int getRefinePasses() {
+    return refinePasses;
+  }
+
+  /**
+   * Method to set the most passes at each level above the smallest.
+   * Fewer passes are faster, more come closer to a full run.
+   * @param refinePasses the passes, 0 to use the palette of the smallest
+   *   level as it is
+   */
+  public void setRefinePasses(int refinePasses) {
+    if (refinePasses < 0) {
+      throw new IllegalArgumentException("refine passes must not be negative: " + refinePasses);
+    }
+    this.refinePasses = refinePasses;
+  }
+
+  /**
+   * Method to choose whether the levels are averaged in parallel
+   * @param parallel false to run on the calling thread only
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  /**
+   * Method to compute a palette coarse to fine
+   * @param pixels packed 0xRRGGBB pixels in row-major order
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @return the palette as packed 0xRRGGBB colors
+   */
+  public int[] computePalette(int[] pixels, int width, int height) {
+    return computeResult(pixels, width, height).getPalette();
+  }
+
+  /**
+   * Method to compute a palette coarse to fine
+   * @param pixels packed 0xRRGGBB pixels in row-major order
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @return the palette, with the stop reason and iterations of the
+   *   last level run
+   */
+  public KMeansResult computeResult(int[] pixels, int width, int height) {
+    if (pixels.length != width * height) {
+      throw new IllegalArgumentException("expected " + (width * height) + " pixels but got " + pixels.length);
+    }
+    // levels[0] is the full image
+    int count = 1;
+    for (int w = width, h = height; (long) w * h > minPixels && (w > 1 || h > 1); count++) {
+      w = (w + 1) / 2;
+      h = (h + 1) / 2;
+    }
+    int[][] levels = new int[count][];
+    levels[0] = pixels;
+    int w = width;
+    int h = height;
+    for (int l = 1; l < count; l++) {
+      levels[l] = halve(levels[l - 1], w, h, parallel);
+      w = (w + 1) / 2;
+      h = (h + 1) / 2;
+    }
+
+    KMeansResult result = kmeans.computeResult(levels[count - 1]);
+    if (refinePasses == 0) {
+      return result;
+    }
+    int limit = kmeans.getMaxIterations();
+    if (limit == 0 || refinePasses < limit) {
+      kmeans.setMaxIterations(refinePasses);
+    }
+    try {
+      for (int l = count - 2; l >= 0 && !stopped(result); l--) {
+        result = kmeans.computeResult(levels[l], result.getPalette());
+      }
+    } finally {
+      kmeans.setMaxIterations(limit);
+    }
+    return result;
+  }
+
+  /**
+   * Class method to tell if a run was stopped from outside
+   * @param result the result of the run
+   * @return true if it ran out of time or was cancelled
+   */
+  private static boolean stopped(KMeansResult result) {
+    return result.getStopReason() == KMeansResult.StopReason.DEADLINE
+      || result.getStopReason() == KMeansResult.StopReason.CANCELLED;
+  }
+
+  /**
+   * Class method to halve an image by averaging 2x2 blocks.  An odd last
+   * row or column is averaged over the pixels it has.
+   * @param pixels packed 0xRRGGBB pixels in row-major order
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @param parallel whether rows are averaged on the common pool
+   * @return the packed pixels of the (width+1)/2 by (height+1)/2 image
+   */
+  public static int[] halve(int[] pixels, int width, int height, boolean parallel) {
+    int halfWidth = (width + 1) / 2;
+    int halfHeight = (height + 1) / 2;
+    int[] result = new int[halfWidth * halfHeight];
+    RowBands.forEach(halfHeight, halfWidth, parallel, (from, to) -> {
+      for (int y = from; y < to; y++) {
+        int top = 2 * y * width;
+        int bottom = 2 * y + 1 < height ? top + width : top;
+        for (int x = 0; x < halfWidth; x++) {
+          int left = 2 * x;
+          int right = left + 1 < width ? left + 1 : left;
+          int a = pixels[top + left];
+          int b = pixels[top + right];
+          int c = pixels[bottom + left];
+          int d = pixels[bottom + right];
+          // a missing row or column repeats the one there is, which
+          // weights what the block has evenly
+          int red = ((a >> 16) & 0xFF) + ((b >> 16) & 0xFF) + ((c >> 16) & 0xFF) + ((d >> 16) & 0xFF);
+          int green = ((a >> 8) & 0xFF) + ((b >> 8) & 0xFF) + ((c >> 8) & 0xFF) + ((d >> 8) & 0xFF);
+          int blue = (a & 0xFF) + (b & 0xFF) + (c & 0xFF) + (d & 0xFF);
+          result[y * halfWidth + x] = KMeans.pack((red + 2) >> 2, (green + 2) >> 2, (blue + 2) >> 2);
+        }
+      }
+    });
+    return result;
+  }
+}
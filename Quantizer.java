@@ -0,0 +1,45 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * An interface for the ways a palette can be computed for an image.
+ * KMeans (and PyramidQuantizer over it) iterate to a close fit;
+ * MedianCut and OctreeQuantizer compute a palette in one pass over the
+ * pixels with memory that does not grow with the image.  measure runs a
+ * quantizer and reports its time, memory and error so engines can be
+ * compared on the images they will be used for.
+ */
+
+public interface Quantizer {
+
+  /**
+   * Method to compute a palette for an image
+   * @param pixels packed 0xRRGGBB pixels in row-major order
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @return the palette as packed 0xRRGGBB colors
+   */
+  int[] computePalette(int[] pixels, int width, int height);
+
+  /**
+   * Method to compute a palette and report what it cost.  The memory is
+   * what the calling thread allocated, so work done on the common pool
+   * is not counted.
+   * @param pixels packed 0xRRGGBB pixels in row-major order
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @return the palette with its time, memory and error
+   */
+  default QuantizerReport measure(int[] pixels, int width, int height) {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean
+      ? (com.sun.management.ThreadMXBean) threads : null;
+    long before = allocations == null ? 0 : allocations.getCurrentThreadAllocatedBytes();
+    long start = System.nanoTime();
+    int[] palette = computePalette(pixels, width, height);
+    long nanos = System.nanoTime() - start;
+    long bytes = allocations == null ? -1 : allocations.getCurrentThreadAllocatedBytes() - before;
+    return new QuantizerReport(getClass().getSimpleName(), palette, nanos, bytes,
+                               QuantizerReport.meanSquaredError(pixels, palette));
+  }
+}
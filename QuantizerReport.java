@@ -0,0 +1,117 @@
+/**
+ * A class that holds what one quantizer run cost and how well its palette
+ * fits the image: the wall time, the bytes allocated and the mean squared
+ * error of mapping every pixel to its closest palette color.
+ */
+
+public class QuantizerReport {
+
+  /** name of the quantizer */
+  private final String name;
+
+  /** the palette as packed 0xRRGGBB colors */
+  private final int[] palette;
+
+  /** wall time of the run */
+  private final long nanos;
+
+  /** bytes allocated by the calling thread, -1 if the JVM cannot tell */
+  private final long allocatedBytes;
+
+  /** mean squared RGB distance from every pixel to its palette color */
+  private final double meanSquaredError;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the outcome of a run
+   * @param name name of the quantizer
+   * @param palette the palette as packed 0xRRGGBB colors
+   * @param nanos wall time of the run
+   * @param allocatedBytes bytes allocated, -1 if not known
+   * @param meanSquaredError mean squared distance to the palette
+   */
+  public QuantizerReport(String name, int[] palette, long nanos, long allocatedBytes,
+                         double meanSquaredError) {
+    this.name = name;
+    this.palette = palette;
+    this.nanos = nanos;
+    this.allocatedBytes = allocatedBytes;
+    this.meanSquaredError = meanSquaredError;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to get the name of the quantizer
+   * @return the name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Method to get the palette
+   * @return the packed 0xRRGGBB colors, not copied
+   */
+  public int[] getPalette() {
+    return palette;
+  }
+
+  /**
+   * Method to get the wall time of the run
+   * @return the time in nanoseconds
+   */
+  public long getNanos() {
+    return nanos;
+  }
+
+  /**
+   * Method to get the bytes the calling thread allocated during the run
+   * @return the bytes, -1 if the JVM cannot tell
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /**
+   * Method to get the mean squared RGB distance from every pixel to its
+   * closest palette color
+   * @return the error, 0 for an exact palette
+   */
+  public double getMeanSquaredError() {
+    return meanSquaredError;
+  }
+
+  /**
+   * Class method to find the mean squared RGB distance from every pixel
+   * to its closest palette color
+   * @param pixels packed 0xRRGGBB pixels
+   * @param palette packed 0xRRGGBB colors
+   * @return the error, NaN if there are pixels but no palette
+   */
+  public static double meanSquaredError(int[] pixels, int[] palette) {
+    if (pixels.length == 0) {
+      return 0;
+    }
+    if (palette.length == 0) {
+      return Double.NaN;
+    }
+    PaletteSearch search = PaletteSearch.forPalette(palette);
+    long total = 0;
+    for (int rgb : pixels) {
+      total += KMeans.distance(rgb, palette[search.nearest(rgb)]);
+    }
+    return (double) total / pixels.length;
+  }
+
+  /**
+   * Method to describe the report
+   * @return the name, colors, time, memory and error
+   */
+  public String toString() {
+    return String.format("%s: %d colors, %.1f ms, %s, mse %.2f", name, palette.length,
+                         nanos / 1e6, allocatedBytes < 0 ? "memory unknown"
+                         : (allocatedBytes >> 10) + " KB allocated", meanSquaredError);
+  }
+}
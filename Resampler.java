@@ -0,0 +1,307 @@
+import java.util.Arrays;
+
+/**
+ * A class that resizes packed 0xRRGGBB images with a choice of filter.
+ * The resize is done as a horizontal pass into float planes and then a
+ * vertical pass, each output column and row taking a weighted sum of the
+ * source pixels under the filter.  The weights depend only on the sizes,
+ * so they are worked out once per pass into tables (first source pixel
+ * and weights of every output pixel), and the passes are plain loops over
+ * the tables with rows in parallel bands.
+ *
+ * When shrinking, BOX weights every source pixel by how much of it the
+ * output pixel covers, so it is an exact area average at any factor, and
+ * the other filters are stretched over 1 / scale source pixels.  At the
+ * edges the weights of the pixels that exist are scaled up to sum to
+ * one.  A BOX shrink by a whole factor (1/2, 1/4, 1/8 and so on) is an
+ * integer average of blocks and skips the tables.
+ */
+
+public class Resampler {
+
+  /** the filters that can be selected */
+  public enum Filter {
+    /** average of the source pixels under the output pixel */
+    BOX(0.5),
+    /** linear interpolation between the two nearest pixels */
+    BILINEAR(1),
+    /** windowed sinc over three pixels each side, the sharpest */
+    LANCZOS(3);
+
+    /** how far the filter reaches at scale 1 */
+    private final double radius;
+
+    Filter(double radius) {
+      this.radius = radius;
+    }
+
+    /**
+     * Method to get the weight of a source pixel at a distance
+     * @param x the distance in output pixels
+     * @return the unnormalized weight
+     */
+    double weight(double x) {
+      x = Math.abs(x);
+      switch (this) {
+        case BOX:
+          return x < 0.5 ? 1 : 0;
+        case BILINEAR:
+          return x < 1 ? 1 - x : 0;
+        default:
+          if (x == 0) {
+            return 1;
+          }
+          if (x >= 3) {
+            return 0;
+          }
+          double pix = Math.PI * x;
+          return 3 * Math.sin(pix) * Math.sin(pix / 3) / (pix * pix);
+      }
+    }
+  }
+
+  /** the filter used */
+  private final Filter filter;
+
+  /** whether rows are processed on the common pool */
+  private boolean parallel = true;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the filter
+   * @param filter the filter to resample with
+   */
+  public Resampler(Filter filter) {
+    this.filter = filter;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to get the filter
+   * @return the filter
+   */
+  public Filter getFilter() {
+    return filter;
+  }
+
+  /**
+   * Method to choose whether rows are processed in parallel
+   * @param parallel false to run on the calling thread only
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  /**
+   * Method to resize a picture
+   * @param source the picture to resize
+   * @param width the new width in pixels
+   * @param height the new height in pixels
+   * @return a new picture of the new size
+   */
+  public Picture apply(Picture source, int width, int height) {
+    Picture target = new Picture(width, height);
+    target.setPackedPixels(apply(source.getPackedPixels(), source.getWidth(), source.getHeight(),
+                                 width, height));
+    return target;
+  }
+
+  /**
+   * Method to resize packed pixels
+   * @param pixels packed 0xRRGGBB pixels in row-major order
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @param newWidth the new width in pixels
+   * @param newHeight the new height in pixels
+   * @return new packed 0xRRGGBB pixels, newWidth by newHeight
+   */
+  public int[] apply(int[] pixels, int width, int height, int newWidth, int newHeight) {
+    if (pixels.length != width * height) {
+      throw new IllegalArgumentException("expected " + (width * height) + " pixels but got " + pixels.length);
+    }
+    if (newWidth < 1 || newHeight < 1) {
+      throw new IllegalArgumentException("size must be at least 1x1: " + newWidth + "x" + newHeight);
+    }
+    if (newWidth == width && newHeight == height) {
+      return pixels.clone();
+    }
+    int factor = width / newWidth;
+    if (filter == Filter.BOX && factor > 1 && width == newWidth * factor
+        && height == newHeight * factor) {
+      return blocks(pixels, width, newWidth, newHeight, factor);
+    }
+
+    Weights across = new Weights(width, newWidth);
+    Weights down = new Weights(height, newHeight);
+
+    // horizontal pass: every source row to newWidth float pixels
+    float[] red = new float[height * newWidth];
+    float[] green = new float[red.length];
+    float[] blue = new float[red.length];
+    RowBands.forEach(height, newWidth, parallel, (from, to) -> {
+      for (int y = from; y < to; y++) {
+        for (int x = 0; x < newWidth; x++) {
+          float r = 0;
+          float g = 0;
+          float b = 0;
+          int start = across.start[x];
+          int w = x * across.taps;
+          for (int t = 0; t < across.count[x]; t++, w++) {
+            int rgb = pixels[y * width + start + t];
+            float weight = across.weights[w];
+            r += weight * ((rgb >> 16) & 0xFF);
+            g += weight * ((rgb >> 8) & 0xFF);
+            b += weight * (rgb & 0xFF);
+          }
+          int i = y * newWidth + x;
+          red[i] = r;
+          green[i] = g;
+          blue[i] = b;
+        }
+      }
+    });
+
+    // vertical pass: each output row adds up whole source rows
+    int[] result = new int[newWidth * newHeight];
+    RowBands.forEach(newHeight, newWidth, parallel, (from, to) -> {
+      float[] r = new float[newWidth];
+      float[] g = new float[newWidth];
+      float[] b = new float[newWidth];
+      for (int y = from; y < to; y++) {
+        Arrays.fill(r, 0);
+        Arrays.fill(g, 0);
+        Arrays.fill(b, 0);
+        int w = y * down.taps;
+        for (int t = 0; t < down.count[y]; t++, w++) {
+          float weight = down.weights[w];
+          int row = (down.start[y] + t) * newWidth;
+          for (int x = 0; x < newWidth; x++) {
+            r[x] += weight * red[row + x];
+            g[x] += weight * green[row + x];
+            b[x] += weight * blue[row + x];
+          }
+        }
+        for (int x = 0; x < newWidth; x++) {
+          result[y * newWidth + x] = KMeans.pack(round(r[x]), round(g[x]), round(b[x]));
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Method to shrink by a whole factor, averaging blocks of pixels
+   * @param pixels packed 0xRRGGBB pixels
+   * @param width the width in pixels
+   * @param newWidth the new width, width / factor
+   * @param newHeight the new height, height / factor
+   * @param factor the side of the blocks
+   * @return the packed 0xRRGGBB pixels of the averages, rounded
+   */
+  private int[] blocks(int[] pixels, int width, int newWidth, int newHeight, int factor) {
+    int[] result = new int[newWidth * newHeight];
+    int area = factor * factor;
+    RowBands.forEach(newHeight, newWidth, parallel, (from, to) -> {
+      int[] r = new int[newWidth];
+      int[] g = new int[newWidth];
+      int[] b = new int[newWidth];
+      for (int y = from; y < to; y++) {
+        Arrays.fill(r, 0);
+        Arrays.fill(g, 0);
+        Arrays.fill(b, 0);
+        // whole source rows, left to right, into the block sums
+        for (int row = y * factor; row < (y + 1) * factor; row++) {
+          int i = row * width;
+          for (int x = 0; x < newWidth; x++) {
+            for (int c = 0; c < factor; c++, i++) {
+              int rgb = pixels[i];
+              r[x] += (rgb >> 16) & 0xFF;
+              g[x] += (rgb >> 8) & 0xFF;
+              b[x] += rgb & 0xFF;
+            }
+          }
+        }
+        for (int x = 0; x < newWidth; x++) {
+          result[y * newWidth + x] = KMeans.pack((r[x] + area / 2) / area, (g[x] + area / 2) / area,
+                                                 (b[x] + area / 2) / area);
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Class method to round a channel value and keep it within 0 to 255,
+   * since LANCZOS can overshoot
+   * @param value the value
+   * @return the rounded value
+   */
+  private static int round(float value) {
+    int v = (int) (value + 0.5f);
+    return value < 0 ? 0 : v > 255 ? 255 : v;
+  }
+
+  /**
+   * The source pixels and weights of every output pixel along one axis
+   */
+  private class Weights {
+    /** first source pixel of each output pixel */
+    final int[] start;
+
+    /** number of source pixels of each output pixel */
+    final int[] count;
+
+    /** most source pixels of any output pixel, the stride of weights */
+    final int taps;
+
+    /** the weights of each output pixel, taps apart */
+    final float[] weights;
+
+    Weights(int size, int newSize) {
+      double scale = (double) newSize / size;
+      // when shrinking the filter is stretched over 1 / scale source pixels
+      double stretch = Math.max(1, 1 / scale);
+      double support = filter.radius * stretch;
+      taps = (int) Math.ceil(2 * support) + 2;
+      start = new int[newSize];
+      count = new int[newSize];
+      weights = new float[newSize * taps];
+      double[] raw = new double[taps];
+
+      boolean coverage = filter == Filter.BOX && scale < 1;
+      for (int i = 0; i < newSize; i++) {
+        double center = (i + 0.5) / scale;
+        int first = Math.max(0, (int) Math.floor(center - support));
+        int last = Math.min(size, (int) Math.ceil(center + support));
+        double total = 0;
+        int n = 0;
+        for (int j = first; j < last && n < taps; j++, n++) {
+          if (coverage) {
+            // the part of source pixel j inside output pixel i
+            double left = i / scale;
+            double right = (i + 1) / scale;
+            raw[n] = Math.max(0, Math.min(j + 1, right) - Math.max(j, left));
+          } else {
+            raw[n] = filter.weight((j + 0.5 - center) / stretch);
+          }
+          total += raw[n];
+        }
+        // drop zero weights at both ends so the loops stay short
+        int skip = 0;
+        while (skip < n - 1 && raw[skip] == 0) {
+          skip++;
+        }
+        while (n - 1 > skip && raw[n - 1] == 0) {
+          n--;
+        }
+        start[i] = first + skip;
+        count[i] = n - skip;
+        for (int t = skip; t < n; t++) {
+          weights[i * taps + t - skip] = total == 0 ? 1f / (n - skip) : (float) (raw[t] / total);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,81 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A class that runs a per-row image operation over bands of rows on the
+ * common ForkJoinPool.  Bands are split at fixed row boundaries that only
+ * depend on the image size, and every row is written by exactly one band,
+ * so an operation whose rows do not depend on each other gives the same
+ * result on any number of threads.
+ */
+
+public class RowBands {
+
+  /** pixels a band covers before it is split again */
+  static final int BAND_PIXELS = 1 << 15;
+
+  /**
+   * The work done on a band of rows
+   */
+  public interface Band {
+    /**
+     * Method to process rows from (inclusive) to to (exclusive)
+     * @param from first row of the band
+     * @param to one past the last row of the band
+     */
+    void run(int from, int to);
+  }
+
+  ///////////////////// constructors ////////////////////////
+
+  private RowBands() {
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Class method to run an operation over every row
+   * @param height number of rows
+   * @param width pixels per row, used to size the bands
+   * @param parallel false to run every row on the calling thread
+   * @param band the work done on each band
+   */
+  public static void forEach(int height, int width, boolean parallel, Band band) {
+    int rows = Math.max(1, BAND_PIXELS / Math.max(1, width));
+    if (!parallel || height <= rows) {
+      band.run(0, height);
+      return;
+    }
+    ForkJoinPool.commonPool().invoke(new BandTask(band, rows, 0, height));
+  }
+
+  /**
+   * Fork/join task over a range of rows, split on multiples of the band
+   * height
+   */
+  private static class BandTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Band band;
+    private final int rows;
+    private final int from;
+    private final int to;
+
+    BandTask(Band band, int rows, int from, int to) {
+      this.band = band;
+      this.rows = rows;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from <= rows) {
+        band.run(from, to);
+        return;
+      }
+      int bands = (to - from + rows - 1) / rows;
+      int mid = from + (bands / 2) * rows;
+      invokeAll(new BandTask(band, rows, from, mid), new BandTask(band, rows, mid, to));
+    }
+  }
+}
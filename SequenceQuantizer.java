@@ -0,0 +1,302 @@
+/**
+ * A class that computes palettes for the frames of a video or an animated
+ * image one after another.  Consecutive frames are nearly the same, so
+ * instead of seeding every frame from scratch the k-means of a frame
+ * starts from the palette the previous frame converged to, which usually
+ * needs only one or two iterations and keeps each color at the same
+ * palette index from frame to frame.
+ *
+ * When frames have the same size and the k-means is not in histogram mode,
+ * the HAMERLY bounds of the previous frame are kept too: pixels that did
+ * not change keep their centroid and bounds, and only the pixels that
+ * changed are compared with every centroid.
+ *
+ * A scene cut is found by comparing coarse color histograms of the frame
+ * and the one before it.  On a cut (and on the first frame) the k-means
+ * is seeded as usual.  With a stable palette the frames between cuts
+ * just reuse the palette of the first frame of their scene.
+ */
+
+public class SequenceQuantizer {
+
+  /** histogram distance above which a frame starts a new scene */
+  public static final double DEFAULT_SCENE_CUT = 0.4;
+
+  /** iterations a frame within a scene gets unless setWarmIterations is called */
+  public static final int DEFAULT_WARM_ITERATIONS = 2;
+
+  /** bits kept per channel for the scene cut histograms */
+  private static final int HISTOGRAM_BITS = 3;
+
+  /** the k-means used for every frame */
+  private KMeans kmeans;
+
+  /** histogram distance above which a frame starts a new scene */
+  private double sceneCut = DEFAULT_SCENE_CUT;
+
+  /** most iterations for a frame within a scene, 0 for no limit */
+  private int warmIterations = DEFAULT_WARM_ITERATIONS;
+
+  /** whether frames within a scene keep the palette of its first frame */
+  private boolean stable = false;
+
+  /** palette of the previous frame, null before the first frame */
+  private int[] palette = null;
+
+  /** pixels and size of the previous frame */
+  private int[] previous = null;
+  private int width = 0;
+  private int height = 0;
+
+  /** coarse histogram of the previous frame, as fractions of its pixels */
+  private double[] histogram = null;
+
+  /** HAMERLY bounds carried from the previous frame, or null */
+  private KMeans.Bounds bounds = null;
+
+  /** frames seen, scene cuts found and total iterations */
+  private int frames = 0;
+  private int sceneCuts = 0;
+  private long iterations = 0;
+
+  /** whether the last frame started a new scene */
+  private boolean lastCut = false;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the k-means to run
+   * @param kmeans the k-means, with the desired number of clusters
+   */
+  public SequenceQuantizer(KMeans kmeans) {
+    this.kmeans = kmeans;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to get the histogram distance above which a frame starts a new
+   * scene
+   * @return the threshold, 0 to 1
+   */
+  public double getSceneCut() {
+    return sceneCut;
+  }
+
+  /**
+   * Method to set the histogram distance above which a frame starts a
+   * new scene.  The distance is the fraction of pixels that would have to
+   * change coarse color to turn one frame's histogram into the other's.
+   * @param sceneCut 0 to make every frame a cut, 1 to never cut
+   */
+  public void setSceneCut(double sceneCut) {
+    if (!(sceneCut >= 0 && sceneCut <= 1)) {
+      throw new IllegalArgumentException("scene cut must be 0 to 1: " + sceneCut);
+    }
+    this.sceneCut = sceneCut;
+  }
+
+  /**
+   * Method to get the most iterations a frame within a scene gets
+   * @return the iterations, 0 for no limit
+   */
+  public int getWarmIterations() {
+    return warmIterations;
+  }
+
+  /**
+   * Method to set the most iterations a frame within a scene gets.  The
+   * palette is carried from frame to frame, so a frame stopped early
+   * still goes on improving it for the next one.
+   * @param warmIterations the iterations, 0 to run every frame to
+   *   convergence
+   */
+  public void setWarmIterations(int warmIterations) {
+    if (warmIterations < 0) {
+      throw new IllegalArgumentException("warm iterations must not be negative: " + warmIterations);
+    }
+    this.warmIterations = warmIterations;
+  }
+
+  /**
+   * Method to tell if frames keep the palette of their scene's first frame
+   * @return true for a stable palette
+   */
+  public boolean isStable() {
+    return stable;
+  }
+
+  /**
+   * Method to choose whether frames keep the palette of their scene's
+   * first frame.  A stable palette costs no k-means between cuts and does
+   * not flicker, but fits the later frames of a scene less well.
+   * @param stable true to reuse the palette until the next cut
+   */
+  public void setStable(boolean stable) {
+    this.stable = stable;
+  }
+
+  /**
+   * Method to compute the palette of the next frame
+   * @param pixels packed 0xRRGGBB pixels of the frame
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @return the palette and why its run stopped
+   */
+  public KMeansResult next(int[] pixels, int width, int height) {
+    if (pixels.length != width * height) {
+      throw new IllegalArgumentException("expected " + (width * height) + " pixels but got " + pixels.length);
+    }
+    double[] counts = coarseHistogram(pixels);
+    boolean sameSize = width == this.width && height == this.height;
+    double change = palette == null ? 1 : distance(histogram, counts);
+    // a frame with fewer colors than clusters leaves a short palette,
+    // which can only grow again by seeding
+    lastCut = palette == null || !sameSize || change > sceneCut
+      || (palette.length < kmeans.getNumber() && change > 0);
+
+    KMeansResult result;
+    if (lastCut) {
+      sceneCuts++;
+      bounds = null;
+      result = kmeans.computeResult(pixels);
+    } else if (stable) {
+      result = new KMeansResult(palette, KMeansResult.StopReason.CONVERGED, 0, -1);
+    } else {
+      result = warmStart(pixels);
+    }
+
+    palette = result.getPalette().clone();
+    previous = bounds == null ? null : pixels.clone();
+    this.width = width;
+    this.height = height;
+    histogram = counts;
+    frames++;
+    iterations += result.getIterations();
+    return result;
+  }
+
+  /**
+   * Method to run the k-means of a frame from the previous palette
+   * @param pixels packed 0xRRGGBB pixels of the frame
+   * @return the palette and why its run stopped
+   */
+  private KMeansResult warmStart(int[] pixels) {
+    int limit = kmeans.getMaxIterations();
+    if (warmIterations > 0 && (limit == 0 || warmIterations < limit)) {
+      kmeans.setMaxIterations(warmIterations);
+    }
+    try {
+      if (kmeans.isHistogram()) {
+        return kmeans.computeResult(pixels, palette);
+      }
+      if (bounds == null) {
+        bounds = new KMeans.Bounds(pixels.length);
+      } else {
+        // a pixel that changed has to be compared with every centroid
+        for (int i = 0; i < pixels.length; i++) {
+          if (pixels[i] != previous[i]) {
+            bounds.labels[i] = -1;
+          }
+        }
+      }
+      return kmeans.computeResult(pixels, palette, bounds);
+    } finally {
+      kmeans.setMaxIterations(limit);
+    }
+  }
+
+  /**
+   * Method to reduce the colors of the next frame
+   * @param picture the frame, for a k-means of at most 256 clusters
+   * @return the frame mapped to its palette
+   */
+  public IndexedImage next(Picture picture) {
+    int width = picture.getWidth();
+    int height = picture.getHeight();
+    int[] pixels = picture.getPackedPixels();
+    return IndexedImage.of(pixels, width, height, next(pixels, width, height).getPalette());
+  }
+
+  /**
+   * Method to forget the previous frames so the next one starts a scene
+   */
+  public void reset() {
+    palette = null;
+    previous = null;
+    histogram = null;
+    bounds = null;
+    width = 0;
+    height = 0;
+    lastCut = false;
+  }
+
+  /**
+   * Method to tell if the last frame started a new scene
+   * @return true if it was seeded from scratch
+   */
+  public boolean isSceneCut() {
+    return lastCut;
+  }
+
+  /**
+   * Method to get the number of frames seen
+   * @return the frames
+   */
+  public int getFrames() {
+    return frames;
+  }
+
+  /**
+   * Method to get the number of frames that started a new scene,
+   * counting the first
+   * @return the scene cuts
+   */
+  public int getSceneCuts() {
+    return sceneCuts;
+  }
+
+  /**
+   * Method to get the average number of k-means iterations per frame
+   * @return the iterations per frame, 0 before the first frame
+   */
+  public double getIterationsPerFrame() {
+    return frames == 0 ? 0 : (double) iterations / frames;
+  }
+
+  /**
+   * Class method to count pixels in coarse color bins
+   * @param pixels packed 0xRRGGBB pixels
+   * @return the fraction of the pixels in each bin
+   */
+  private static double[] coarseHistogram(int[] pixels) {
+    int shift = 8 - HISTOGRAM_BITS;
+    int[] counts = new int[1 << (3 * HISTOGRAM_BITS)];
+    for (int rgb : pixels) {
+      int r = ((rgb >> 16) & 0xFF) >> shift;
+      int g = ((rgb >> 8) & 0xFF) >> shift;
+      int b = (rgb & 0xFF) >> shift;
+      counts[(r << (2 * HISTOGRAM_BITS)) | (g << HISTOGRAM_BITS) | b]++;
+    }
+    double[] fractions = new double[counts.length];
+    for (int i = 0; i < counts.length; i++) {
+      fractions[i] = pixels.length == 0 ? 0 : (double) counts[i] / pixels.length;
+    }
+    return fractions;
+  }
+
+  /**
+   * Class method to find the distance between two coarse histograms, half
+   * the sum of the differences of their bins
+   * @param a one histogram
+   * @param b the other histogram
+   * @return the distance, 0 for the same colors to 1 for no colors shared
+   */
+  private static double distance(double[] a, double[] b) {
+    double total = 0;
+    for (int i = 0; i < a.length; i++) {
+      total += Math.abs(a[i] - b[i]);
+    }
+    return total / 2;
+  }
+}
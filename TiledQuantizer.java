@@ -0,0 +1,496 @@
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Vector;
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * A class that reduces the colors of an image file that is too large to
+ * hold on the heap.  The image is decoded in one sequential pass into a
+ * BufferedImage whose samples live in a memory-mapped scratch file, in
+ * the layout the reader produces, a color histogram is built from it row
+ * by row, the palette is computed with weighted k-means over that
+ * histogram, and the output is encoded row by row straight from the
+ * scratch file, as an indexed image when the palette has at most 256
+ * colors.  Only a few rows, the histogram and the palette are ever on
+ * the heap, so the heap used does not grow with the image.
+ *
+ * That one pass is used for the formats that can only be decoded from
+ * the top (PNG, JPEG and GIF), where reading a region decodes every row
+ * above it again.  Other formats, such as BMP and TIFF, can seek to any
+ * row, and their readers do not always write into a buffer they did not
+ * make, so they are read one band of rows at a time, which also decodes
+ * every row once.
+ *
+ * The histogram keeps at most maxColors colors.  When an image has more,
+ * the low bit of every channel is dropped and the histogram is counted
+ * again from the colors it has, as often as it takes, so a photo with
+ * millions of colors is counted at 6 or 7 bits a channel.  The dropped
+ * bits only change what the palette is computed from; every pixel is
+ * still mapped to the palette at full precision.
+ */
+
+public class TiledQuantizer {
+
+  /** the k-means used to compute the palette from the histogram */
+  private KMeans kmeans;
+
+  /** formats decoded in one pass straight into the scratch file */
+  private static final String[] SEQUENTIAL_FORMATS = {"png", "jpeg", "gif"};
+
+  /** most colors in the histogram unless setMaxColors is called */
+  public static final int DEFAULT_MAX_COLORS = 1 << 18;
+
+  /** rows read at a time by readers that cannot decode in one pass */
+  private int bandHeight = 256;
+
+  /** the histogram is coarsened when it has more colors than this */
+  private int maxColors = DEFAULT_MAX_COLORS;
+
+  /** directory for the scratch file, null for the default temp directory */
+  private File scratchDirectory = null;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that takes the k-means to run
+   * @param kmeans the k-means, with the desired number of clusters
+   */
+  public TiledQuantizer(KMeans kmeans) {
+    this.kmeans = kmeans;
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to get the number of rows decoded at a time
+   * @return the band height
+   */
+  public int getBandHeight() {
+    return bandHeight;
+  }
+
+  /**
+   * Method to set the number of rows read at a time by readers that
+   * cannot decode the whole image in one pass, which is also the height
+   * of the tiles handed to the image writer
+   * @param bandHeight the band height
+   */
+  public void setBandHeight(int bandHeight) {
+    if (bandHeight < 1) {
+      throw new IllegalArgumentException("band height must be at least 1: " + bandHeight);
+    }
+    this.bandHeight = bandHeight;
+  }
+
+  /**
+   * Method to get the most colors the histogram keeps
+   * @return the most colors
+   */
+  public int getMaxColors() {
+    return maxColors;
+  }
+
+  /**
+   * Method to set the most colors the histogram keeps.  The histogram
+   * takes about 24 bytes a color, and more colors make the k-means over
+   * it slower but closer to the exact palette.
+   * @param maxColors the most colors, at least 8
+   */
+  public void setMaxColors(int maxColors) {
+    if (maxColors < 8) {
+      throw new IllegalArgumentException("max colors must be at least 8: " + maxColors);
+    }
+    this.maxColors = maxColors;
+  }
+
+  /**
+   * Method to set where the scratch file is made
+   * @param scratchDirectory the directory, null for the temp directory
+   */
+  public void setScratchDirectory(File scratchDirectory) {
+    this.scratchDirectory = scratchDirectory;
+  }
+
+  /**
+   * Method to reduce the colors of an image file and write the result
+   * @param input the image to read
+   * @param output the image to write, its format taken from the extension
+   * @return the palette as packed 0xRRGGBB colors
+   * @throws IOException if the image cannot be read or written
+   */
+  public int[] quantize(File input, File output) throws IOException {
+    File scratch = File.createTempFile("quantize", ".raw", scratchDirectory);
+    scratch.deleteOnExit();
+    try (RandomAccessFile file = new RandomAccessFile(scratch, "rw");
+         FileChannel channel = file.getChannel()) {
+      ScratchRaster raster = decode(input, channel);
+      int[] palette = kmeans.computePalette(raster.histogram);
+      encode(raster, palette, output);
+      return palette;
+    } finally {
+      scratch.delete();
+    }
+  }
+
+  /**
+   * Method to decode an image into the scratch file and count its colors
+   * @param input the image to read
+   * @param channel the scratch file
+   * @return the scratch raster with its histogram
+   * @throws IOException if the image cannot be read
+   */
+  private ScratchRaster decode(File input, FileChannel channel) throws IOException {
+    try (ImageInputStream in = ImageIO.createImageInputStream(input)) {
+      if (in == null) {
+        throw new IOException("cannot open " + input);
+      }
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) {
+        throw new IOException("no image reader for " + input);
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, false, true);
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        // the type the reader decodes to when it is given no destination
+        ImageTypeSpecifier type = reader.getImageTypes(0).next();
+        ScratchRaster raster = new ScratchRaster(channel, type, width, height, bandHeight, maxColors);
+
+        if (!isSequential(reader) || !readWhole(reader, raster)) {
+          // read bands of rows of the same type and copy them in
+          ImageReadParam param = reader.getDefaultReadParam();
+          for (int y = 0; y < height; y += bandHeight) {
+            param.setSourceRegion(new Rectangle(0, y, width, Math.min(bandHeight, height - y)));
+            raster.image.getRaster().setRect(0, y, reader.read(0, param).getRaster());
+          }
+        }
+
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+          raster.read(y, 0, row);
+          for (int x = 0; x < width; x++) {
+            raster.count(row[x]);
+          }
+        }
+        return raster;
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Class method to tell if a reader's format can only be decoded from
+   * the top
+   * @param reader the reader
+   * @return true for PNG, JPEG and GIF
+   */
+  private static boolean isSequential(ImageReader reader) throws IOException {
+    String format = reader.getFormatName().toLowerCase();
+    for (String sequential : SEQUENTIAL_FORMATS) {
+      if (format.equals(sequential)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Class method to decode the whole image in one pass into the scratch
+   * file
+   * @param reader the reader, its input set
+   * @param raster the scratch raster to decode into
+   * @return false if the reader cannot write into the scratch buffer
+   * @throws IOException if the image cannot be read
+   */
+  private static boolean readWhole(ImageReader reader, ScratchRaster raster) throws IOException {
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setDestination(raster.image);
+    try {
+      reader.read(0, param);
+      return true;
+    } catch (IIOException | ClassCastException ex) {
+      // the reader wants a DataBuffer of its own kind
+      return false;
+    }
+  }
+
+  /**
+   * Method to encode the quantized image row by row from the scratch file
+   * @param raster the decoded scratch raster
+   * @param palette the palette to map to
+   * @param output the file to write
+   * @throws IOException if the image cannot be written
+   */
+  private void encode(ScratchRaster raster, int[] palette, File output) throws IOException {
+    String name = output.getName();
+    String format = name.lastIndexOf('.') < 0 ? "png" : name.substring(name.lastIndexOf('.') + 1);
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(format);
+    if (!writers.hasNext()) {
+      throw new IOException("no image writer for " + format);
+    }
+    ImageWriter writer = writers.next();
+    output.delete();
+    try (ImageOutputStream out = ImageIO.createImageOutputStream(output)) {
+      writer.setOutput(out);
+      writer.write(new MappedImage(raster, palette));
+    } finally {
+      writer.dispose();
+    }
+  }
+
+  /**
+   * The decoded image, a BufferedImage of the reader's type over a
+   * ScratchBuffer, with the histogram of its colors
+   */
+  static class ScratchRaster {
+    final int width;
+    final int height;
+    final int bandHeight;
+    final int maxColors;
+    final BufferedImage image;
+    ColorHistogram histogram = new ColorHistogram();
+
+    /** low bits dropped from every channel before counting */
+    int dropped = 0;
+
+    ScratchRaster(FileChannel channel, ImageTypeSpecifier type, int width, int height, int bandHeight,
+                  int maxColors) throws IOException {
+      this.width = width;
+      this.height = height;
+      this.bandHeight = bandHeight;
+      this.maxColors = maxColors;
+      SampleModel model = type.getSampleModel(width, height);
+      // the buffer one row needs, without allocating the whole image
+      DataBuffer row = type.getSampleModel(width, 1).createDataBuffer();
+      long size = (long) row.getSize() * height;
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("image too large for one scratch buffer: " + width + "x" + height);
+      }
+      ScratchBuffer buffer = new ScratchBuffer(channel, row.getDataType(), (int) size, row.getNumBanks());
+      ColorModel colorModel = type.getColorModel();
+      image = new BufferedImage(colorModel, Raster.createWritableRaster(model, buffer, null),
+                                colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Method to count a pixel in the histogram, dropping another bit of
+     * every channel when it gets too many colors
+     * @param rgb packed 0xRRGGBB color
+     */
+    void count(int rgb) {
+      histogram.add(coarsen(rgb, dropped), 1);
+      while (histogram.size() > maxColors && dropped < 7) {
+        dropped++;
+        int[] colors = histogram.getColors();
+        int[] counts = histogram.getCounts();
+        histogram = new ColorHistogram(maxColors);
+        for (int i = 0; i < colors.length; i++) {
+          histogram.add(coarsen(colors[i], dropped), counts[i]);
+        }
+      }
+    }
+
+    /**
+     * Class method to drop the low bits of every channel of a color
+     * @param rgb packed 0xRRGGBB color
+     * @param bits how many bits to drop
+     * @return the color in the middle of the cell it falls in
+     */
+    static int coarsen(int rgb, int bits) {
+      if (bits == 0) {
+        return rgb;
+      }
+      int low = ((1 << bits) - 1) * 0x010101;
+      int half = (1 << (bits - 1)) * 0x010101;
+      return (rgb & ~low) | half;
+    }
+
+    /**
+     * Method to read part of a row
+     * @param y the row
+     * @param x the first column
+     * @param row where the packed 0xRRGGBB pixels go, row.length of them
+     */
+    void read(int y, int x, int[] row) {
+      image.getRGB(x, y, row.length, 1, row, 0, row.length);
+      for (int i = 0; i < row.length; i++) {
+        row[i] &= 0xFFFFFF;
+      }
+    }
+  }
+
+  /**
+   * A DataBuffer whose elements are stored in a memory-mapped file, one,
+   * two or four bytes each as the data type needs.  The file is mapped
+   * in a few large chunks, all mapped up front and kept until the buffer
+   * is dropped, and elements are read and written with absolute gets and
+   * puts, so any number of threads can read.
+   */
+  static class ScratchBuffer extends DataBuffer {
+    /** log2 of the most bytes in one mapping */
+    private static final int CHUNK_SHIFT = 30;
+
+    /** log2 of the bytes in an element */
+    private final int elementShift;
+
+    /** the mapped chunks, each 1 << CHUNK_SHIFT bytes but the last */
+    private final ByteBuffer[] chunks;
+
+    ScratchBuffer(FileChannel channel, int dataType, int size, int banks) throws IOException {
+      super(dataType, size, banks);
+      if (dataType == TYPE_BYTE) {
+        elementShift = 0;
+      } else if (dataType == TYPE_USHORT || dataType == TYPE_SHORT) {
+        elementShift = 1;
+      } else if (dataType == TYPE_INT) {
+        elementShift = 2;
+      } else {
+        throw new IOException("unsupported sample type: " + dataType);
+      }
+      long bytes = ((long) size * banks) << elementShift;
+      chunks = new ByteBuffer[(int) ((bytes + (1L << CHUNK_SHIFT) - 1) >>> CHUNK_SHIFT)];
+      for (int c = 0; c < chunks.length; c++) {
+        long position = (long) c << CHUNK_SHIFT;
+        chunks[c] = channel.map(FileChannel.MapMode.READ_WRITE, position,
+                                Math.min(1L << CHUNK_SHIFT, bytes - position))
+          .order(ByteOrder.nativeOrder());
+      }
+    }
+
+    public int getElem(int bank, int i) {
+      long at = ((long) bank * size + i) << elementShift;
+      ByteBuffer chunk = chunks[(int) (at >>> CHUNK_SHIFT)];
+      int offset = (int) at & ((1 << CHUNK_SHIFT) - 1);
+      switch (dataType) {
+        case TYPE_BYTE:
+          return chunk.get(offset) & 0xFF;
+        case TYPE_USHORT:
+          return chunk.getShort(offset) & 0xFFFF;
+        case TYPE_SHORT:
+          return chunk.getShort(offset);
+        default:
+          return chunk.getInt(offset);
+      }
+    }
+
+    public void setElem(int bank, int i, int value) {
+      long at = ((long) bank * size + i) << elementShift;
+      ByteBuffer chunk = chunks[(int) (at >>> CHUNK_SHIFT)];
+      int offset = (int) at & ((1 << CHUNK_SHIFT) - 1);
+      switch (dataType) {
+        case TYPE_BYTE:
+          chunk.put(offset, (byte) value);
+          break;
+        case TYPE_USHORT:
+        case TYPE_SHORT:
+          chunk.putShort(offset, (short) value);
+          break;
+        default:
+          chunk.putInt(offset, value);
+      }
+    }
+  }
+
+  /**
+   * A RenderedImage whose pixels are computed on request from the scratch
+   * file and the palette, one band per tile, so an image writer can
+   * encode it without the whole image being in memory
+   */
+  static class MappedImage implements RenderedImage {
+    private final ScratchRaster raster;
+    private final int[] palette;
+    private final InverseColorMap colorMap;
+    private final boolean indexed;
+    private final ColorModel colorModel;
+    private final SampleModel sampleModel;
+
+    MappedImage(ScratchRaster raster, int[] palette) {
+      this.raster = raster;
+      this.palette = palette;
+      this.colorMap = InverseColorMap.forPalette(palette);
+      this.indexed = palette.length <= IndexedImage.MAX_COLORS;
+      this.colorModel = indexed ? IndexedImage.colorModel(palette)
+        : new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+      this.sampleModel = colorModel.createCompatibleSampleModel(raster.width, raster.bandHeight);
+    }
+
+    public Raster getData(Rectangle rect) {
+      Rectangle bounds = rect.intersection(new Rectangle(0, 0, raster.width, raster.height));
+      WritableRaster result = colorModel.createCompatibleWritableRaster(bounds.width, bounds.height)
+        .createWritableTranslatedChild(bounds.x, bounds.y);
+      int[] row = new int[bounds.width];
+      for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+        raster.read(y, bounds.x, row);
+        if (indexed) {
+          for (int x = 0; x < row.length; x++) {
+            row[x] = colorMap.lookup(row[x]);
+          }
+          result.setSamples(bounds.x, y, bounds.width, 1, 0, row);
+        } else {
+          for (int x = 0; x < row.length; x++) {
+            row[x] = palette[colorMap.lookup(row[x])];
+          }
+          result.setDataElements(bounds.x, y, bounds.width, 1, row);
+        }
+      }
+      return result;
+    }
+
+    public Raster getTile(int tileX, int tileY) {
+      return getData(new Rectangle(0, tileY * raster.bandHeight, raster.width, raster.bandHeight));
+    }
+
+    public Raster getData() {
+      return getData(new Rectangle(0, 0, raster.width, raster.height));
+    }
+
+    public WritableRaster copyData(WritableRaster target) {
+      if (target == null) {
+        return (WritableRaster) getData();
+      }
+      target.setRect(getData(target.getBounds()));
+      return target;
+    }
+
+    public Vector<RenderedImage> getSources() { return null; }
+    public Object getProperty(String name) { return java.awt.Image.UndefinedProperty; }
+    public String[] getPropertyNames() { return null; }
+    public ColorModel getColorModel() { return colorModel; }
+    public SampleModel getSampleModel() { return sampleModel; }
+    public int getWidth() { return raster.width; }
+    public int getHeight() { return raster.height; }
+    public int getMinX() { return 0; }
+    public int getMinY() { return 0; }
+    public int getNumXTiles() { return 1; }
+    public int getNumYTiles() { return (raster.height + raster.bandHeight - 1) / raster.bandHeight; }
+    public int getMinTileX() { return 0; }
+    public int getMinTileY() { return 0; }
+    public int getTileWidth() { return raster.width; }
+    public int getTileHeight() { return raster.bandHeight; }
+    public int getTileGridXOffset() { return 0; }
+    public int getTileGridYOffset() { return 0; }
+  }
+}
@@ -0,0 +1,64 @@
+import java.lang.reflect.Constructor;
+
+/**
+ * A class that makes VectorPaletteSearch available without depending on
+ * it.  The Vector API is an incubator module, so the class is kept in
+ * vector/ and compiled separately, and it is only loaded, by reflection,
+ * when it was compiled and the JVM was started with
+ * --add-modules jdk.incubator.vector.  Setting the system property
+ * picture.vector to false turns it off.
+ */
+
+final class VectorSupport {
+
+  /** the constructor of VectorPaletteSearch, null when it cannot be used */
+  private static final Constructor<?> CONSTRUCTOR = load();
+
+  ///////////////////// constructors ////////////////////////
+
+  private VectorSupport() {
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Class method to tell if the vector search can be used
+   * @return true if the Vector API module is present
+   */
+  static boolean isAvailable() {
+    return CONSTRUCTOR != null;
+  }
+
+  /**
+   * Class method to make a vector search for a palette
+   * @param palette packed 0xRRGGBB palette colors
+   * @return the search, or null if the Vector API is not available
+   */
+  static PaletteSearch create(int[] palette) {
+    if (CONSTRUCTOR == null) {
+      return null;
+    }
+    try {
+      return (PaletteSearch) CONSTRUCTOR.newInstance((Object) palette);
+    } catch (ReflectiveOperationException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Class method to look up the constructor if the module is there
+   * @return the constructor, or null
+   */
+  private static Constructor<?> load() {
+    if ("false".equals(System.getProperty("picture.vector"))
+        || !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+      return null;
+    }
+    try {
+      return Class.forName("VectorPaletteSearch").getConstructor(int[].class);
+    } catch (ReflectiveOperationException | LinkageError ex) {
+      // compiled without the module, or the JVM cannot run it
+      return null;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package bench;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per-pixel cost of Picture.computeDistance and Picture.closestColor, the
+ * inner loop of the original k-means.  Each invocation runs over a fixed
+ * set of pixels so the score is the time per pixel.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DistanceBenchmark {
+
+  /** pixels visited per invocation */
+  static final int PIXELS = 1024;
+
+  @Param({"synthetic", "photo"})
+  String fixture;
+
+  @Param({"8", "16", "64", "256"})
+  int k;
+
+  Object[] pixels;
+  ArrayList<Color> palette;
+  Color color;
+
+  @Setup
+  public void setup() throws Throwable {
+    Object picture = Fixtures.picture(fixture, "320x240");
+    pixels = new Object[PIXELS];
+    for (int i = 0; i < PIXELS; i++) {
+      pixels[i] = Subjects.GET_PIXEL.invoke(picture, (i * 31) % 320, (i * 17) % 240);
+    }
+    palette = Fixtures.palette(k);
+    color = palette.get(0);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PIXELS)
+  public int computeDistance() throws Throwable {
+    int sum = 0;
+    for (Object pixel : pixels) {
+      sum += (int) Subjects.COMPUTE_DISTANCE.invoke(pixel, color);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PIXELS)
+  public void closestColor(Blackhole blackhole) throws Throwable {
+    for (Object pixel : pixels) {
+      blackhole.consume((Color) Subjects.CLOSEST_COLOR.invoke(pixel, palette));
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole-image cost of the filters: convolve with a 3x3 and a 5x5 blur,
+ * oilPaint at two radii, and scale down and up.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+
+  @Param({"synthetic", "photo"})
+  String fixture;
+
+  @Param({"320x240", "1280x720", "1920x1080"})
+  String resolution;
+
+  Object picture;
+  float[][] blur3;
+  float[][] blur5;
+
+  @Setup
+  public void setup() throws Throwable {
+    picture = Fixtures.picture(fixture, resolution);
+    blur3 = box(3);
+    blur5 = box(5);
+  }
+
+  private static float[][] box(int size) {
+    float[][] kernel = new float[size][size];
+    for (float[] row : kernel) {
+      Arrays.fill(row, 1f / (size * size));
+    }
+    return kernel;
+  }
+
+  @Benchmark
+  public Object convolve3x3() throws Throwable {
+    return Subjects.CONVOLVE.invoke(picture, blur3);
+  }
+
+  @Benchmark
+  public Object convolve5x5() throws Throwable {
+    return Subjects.CONVOLVE.invoke(picture, blur5);
+  }
+
+  @Benchmark
+  public Object oilPaint2() throws Throwable {
+    return Subjects.OIL_PAINT.invoke(picture, 2);
+  }
+
+  @Benchmark
+  public Object oilPaint5() throws Throwable {
+    return Subjects.OIL_PAINT.invoke(picture, 5);
+  }
+
+  @Benchmark
+  public Object scaleHalf() throws Throwable {
+    return Subjects.SCALE.invoke(picture, 0.5);
+  }
+
+  @Benchmark
+  public Object scaleDouble() throws Throwable {
+    return Subjects.SCALE.invoke(picture, 2.0);
+  }
+}
@@ -0,0 +1,189 @@
+package bench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Images and palettes the benchmarks run on.  A "synthetic" fixture is a
+ * seeded mix of gradients, flat blocks and noise, so every run sees the
+ * same pixels.  A "photo" fixture is the image named by the bench.photo
+ * system property (or the first image in the bench.photos directory)
+ * resized to the requested resolution.  Without either property the
+ * photo fixture is a generated stand-in: soft blobs of color over a sky
+ * and ground gradient with sensor-like noise, smooth like a photo rather
+ * than blocky like the synthetic fixture.
+ */
+
+final class Fixtures {
+
+  /** seed of the synthetic images and of the palettes */
+  static final long SEED = 42;
+
+  private Fixtures() {
+  }
+
+  /**
+   * Method to make the picture of a fixture
+   * @param fixture "synthetic" or "photo"
+   * @param resolution width x height, for example "1280x720"
+   * @return a Picture, typed as Object because Picture is in the unnamed package
+   */
+  static Object picture(String fixture, String resolution) throws Throwable {
+    int x = resolution.indexOf('x');
+    int width = Integer.parseInt(resolution.substring(0, x));
+    int height = Integer.parseInt(resolution.substring(x + 1));
+    BufferedImage image;
+    if (fixture.equals("synthetic")) {
+      image = synthetic(width, height);
+    } else if (fixture.equals("photo")) {
+      File photo = photo();
+      image = photo == null ? generatedPhoto(width, height) : resize(ImageIO.read(photo), width, height);
+    } else {
+      throw new IllegalArgumentException("unknown fixture: " + fixture);
+    }
+    return Subjects.NEW_PICTURE.invoke(image);
+  }
+
+  /**
+   * Method to make a seeded random palette
+   * @param k number of colors
+   * @return the colors
+   */
+  static ArrayList<Color> palette(int k) {
+    Random random = new Random(SEED + k);
+    ArrayList<Color> colors = new ArrayList<Color>();
+    for (int i = 0; i < k; i++) {
+      colors.add(new Color(random.nextInt(0x1000000)));
+    }
+    return colors;
+  }
+
+  /**
+   * Method to make a seeded synthetic image
+   */
+  private static BufferedImage synthetic(int width, int height) {
+    Random random = new Random(SEED);
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int block = Math.max(8, width / 16);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int r, g, b;
+        if (((x / block) + (y / block)) % 3 == 0) {
+          // flat block, many pixels with the same color
+          int shade = ((x / block) * 37 + (y / block) * 91) & 0xFF;
+          r = shade;
+          g = 255 - shade;
+          b = (shade * 3) & 0xFF;
+        } else {
+          // gradient with noise, many distinct colors
+          r = Math.min(255, x * 255 / width + random.nextInt(16));
+          g = Math.min(255, y * 255 / height + random.nextInt(16));
+          b = Math.min(255, (x + y) * 255 / (width + height) + random.nextInt(16));
+        }
+        image.setRGB(x, y, (r << 16) | (g << 8) | b);
+      }
+    }
+    return image;
+  }
+
+  /**
+   * Method to make a seeded stand-in for a photo
+   */
+  private static BufferedImage generatedPhoto(int width, int height) {
+    Random random = new Random(SEED + 1);
+    int blobs = 12;
+    double[] centerX = new double[blobs];
+    double[] centerY = new double[blobs];
+    double[] spread = new double[blobs];
+    int[] colors = new int[blobs];
+    for (int i = 0; i < blobs; i++) {
+      centerX[i] = random.nextDouble() * width;
+      centerY[i] = random.nextDouble() * height;
+      double radius = (0.05 + random.nextDouble() * 0.2) * Math.max(width, height);
+      spread[i] = 2 * radius * radius;
+      colors[i] = random.nextInt(0x1000000);
+    }
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < height; y++) {
+      // sky blue at the top to olive ground at the bottom
+      double t = (double) y / height;
+      double skyR = 135 + (74 - 135) * t;
+      double skyG = 190 + (93 - 190) * t;
+      double skyB = 235 + (35 - 235) * t;
+      for (int x = 0; x < width; x++) {
+        double r = skyR;
+        double g = skyG;
+        double b = skyB;
+        for (int i = 0; i < blobs; i++) {
+          double dx = x - centerX[i];
+          double dy = y - centerY[i];
+          double w = Math.exp(-(dx * dx + dy * dy) / spread[i]);
+          r += w * (((colors[i] >> 16) & 0xFF) - r);
+          g += w * (((colors[i] >> 8) & 0xFF) - g);
+          b += w * ((colors[i] & 0xFF) - b);
+        }
+        image.setRGB(x, y, (channel(r + random.nextGaussian() * 3) << 16)
+                     | (channel(g + random.nextGaussian() * 3) << 8) | channel(b + random.nextGaussian() * 3));
+      }
+    }
+    return image;
+  }
+
+  /**
+   * Method to round a channel value into 0 to 255
+   */
+  private static int channel(double value) {
+    return (int) Math.max(0, Math.min(255, Math.round(value)));
+  }
+
+  /**
+   * Method to find the photo to use
+   * @return the photo, or null to use the generated stand-in
+   */
+  private static File photo() throws IOException {
+    String name = System.getProperty("bench.photo");
+    if (name != null) {
+      return new File(name);
+    }
+    String directory = System.getProperty("bench.photos");
+    if (directory != null) {
+      File[] files = new File(directory).listFiles();
+      if (files != null) {
+        Arrays.sort(files);
+        for (File file : files) {
+          String lower = file.getName().toLowerCase();
+          if (lower.endsWith(".jpg") || lower.endsWith(".jpeg") || lower.endsWith(".png")) {
+            return file;
+          }
+        }
+      }
+    }
+    if (directory != null) {
+      throw new IOException("no .jpg, .jpeg or .png in " + directory);
+    }
+    return null;
+  }
+
+  /**
+   * Method to resize an image with bilinear filtering
+   */
+  private static BufferedImage resize(BufferedImage source, int width, int height) throws IOException {
+    if (source == null) {
+      throw new IOException("photo fixture is not a readable image");
+    }
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = image.createGraphics();
+    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    graphics.drawImage(source, 0, 0, width, height, null);
+    graphics.dispose();
+    return image;
+  }
+}
@@ -0,0 +1,64 @@
+package bench;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole-image cost of the k-means steps: one recluster pass, a full
+ * computeColors run and mapToColorList, at several resolutions and
+ * palette sizes.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QuantizeBenchmark {
+
+  @Param({"synthetic", "photo"})
+  String fixture;
+
+  @Param({"320x240", "1280x720", "1920x1080"})
+  String resolution;
+
+  @Param({"8", "64", "256"})
+  int k;
+
+  Object picture;
+  ArrayList<Color> palette;
+
+  @Setup
+  public void setup() throws Throwable {
+    picture = Fixtures.picture(fixture, resolution);
+    palette = Fixtures.palette(k);
+  }
+
+  @Benchmark
+  public Object recluster() throws Throwable {
+    return (ArrayList<?>) Subjects.RECLUSTER.invoke(picture, k, palette);
+  }
+
+  @Benchmark
+  public Object computeColors() throws Throwable {
+    return (ArrayList<?>) Subjects.COMPUTE_COLORS.invoke(picture, k);
+  }
+
+  @Benchmark
+  public Object mapToColorList() throws Throwable {
+    return Subjects.MAP_TO_COLOR_LIST.invoke(picture, palette);
+  }
+}
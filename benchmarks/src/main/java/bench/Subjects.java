@@ -0,0 +1,68 @@
+package bench;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+
+/**
+ * Handles on the Picture methods being measured.  The project classes are
+ * in the unnamed package, which cannot be imported from the named package
+ * JMH requires, so they are bound once through method handles.  The
+ * handles are static finals, which the JIT treats as constants and inlines
+ * through like a direct call.
+ */
+
+final class Subjects {
+
+  static final Class<?> PICTURE = load("Picture");
+  static final Class<?> PIXEL = load("Pixel");
+
+  static final MethodHandle NEW_PICTURE = constructor(PICTURE, BufferedImage.class);
+  static final MethodHandle GET_PIXEL = virtual(PICTURE, "getPixel", PIXEL, int.class, int.class);
+  static final MethodHandle COMPUTE_DISTANCE = statik(PICTURE, "computeDistance", int.class, PIXEL, Color.class);
+  static final MethodHandle CLOSEST_COLOR = statik(PICTURE, "closestColor", Color.class, PIXEL, ArrayList.class);
+  static final MethodHandle RECLUSTER = virtual(PICTURE, "recluster", ArrayList.class, int.class, ArrayList.class);
+  static final MethodHandle COMPUTE_COLORS = virtual(PICTURE, "computeColors", ArrayList.class, int.class);
+  static final MethodHandle MAP_TO_COLOR_LIST = virtual(PICTURE, "mapToColorList", PICTURE, ArrayList.class);
+  static final MethodHandle CONVOLVE = virtual(PICTURE, "convolve", PICTURE, float[][].class);
+  static final MethodHandle OIL_PAINT = virtual(PICTURE, "oilPaint", PICTURE, int.class);
+  static final MethodHandle SCALE = virtual(PICTURE, "scale", PICTURE, double.class);
+
+  private Subjects() {
+  }
+
+  private static Class<?> load(String name) {
+    try {
+      return Class.forName(name);
+    } catch (ClassNotFoundException ex) {
+      throw new IllegalStateException("project classes are not on the class path: " + name, ex);
+    }
+  }
+
+  private static MethodHandle constructor(Class<?> owner, Class<?>... parameters) {
+    try {
+      return MethodHandles.publicLookup().findConstructor(owner, MethodType.methodType(void.class, parameters));
+    } catch (ReflectiveOperationException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static MethodHandle virtual(Class<?> owner, String name, Class<?> returns, Class<?>... parameters) {
+    try {
+      return MethodHandles.publicLookup().findVirtual(owner, name, MethodType.methodType(returns, parameters));
+    } catch (ReflectiveOperationException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static MethodHandle statik(Class<?> owner, String name, Class<?> returns, Class<?>... parameters) {
+    try {
+      return MethodHandles.publicLookup().findStatic(owner, name, MethodType.methodType(returns, parameters));
+    } catch (ReflectiveOperationException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of BatchCompressor
+ */
+
+public class BatchCompressorTest {
+
+  @TempDir
+  File directory;
+
+  @Test
+  public void inputsWithTheSameOutputNameAreRefused() throws Exception {
+    File first = image(new File(directory, "a"), "photo.png", 0x336699);
+    File second = image(new File(directory, "b"), "photo.jpg", 0x996633);
+    File output = new File(directory, "out");
+    BatchCompressor compressor = new BatchCompressor(4, output);
+
+    IllegalArgumentException ex = assertThrows(IllegalArgumentException.class,
+      () -> compressor.run(Arrays.asList(first, second)));
+    assertTrue(ex.getMessage().contains(first.toString()));
+    assertTrue(ex.getMessage().contains(second.toString()));
+    assertFalse(output.exists());
+  }
+
+  @Test
+  public void inputsWithDistinctNamesAreAllWritten() throws Exception {
+    File first = image(new File(directory, "a"), "one.png", 0x336699);
+    File second = image(new File(directory, "b"), "two.png", 0x996633);
+    File output = new File(directory, "out");
+    BatchCompressor compressor = new BatchCompressor(4, output);
+
+    BatchResult result = compressor.run(Arrays.asList(first, second));
+    assertEquals(2, result.getWritten());
+    assertTrue(result.isComplete());
+    assertEquals(0x336699, ImageIO.read(new File(output, "one.png")).getRGB(0, 0) & 0xFFFFFF);
+    assertEquals(0x996633, ImageIO.read(new File(output, "two.png")).getRGB(0, 0) & 0xFFFFFF);
+  }
+
+  @Test
+  public void unreadableInputsAreReportedAndTheRestWritten() throws Exception {
+    File good = image(new File(directory, "a"), "good.png", 0x336699);
+    File bad = new File(directory, "bad.png");
+    Files.write(bad.toPath(), "not an image".getBytes("US-ASCII"));
+    File output = new File(directory, "out");
+    BatchCompressor compressor = new BatchCompressor(4, output);
+
+    BatchResult result = compressor.run(Arrays.asList(bad, good));
+    assertEquals(1, result.getWritten());
+    assertFalse(result.isComplete());
+    assertEquals(Collections.singleton(bad), result.getFailures().keySet());
+    assertTrue(new File(output, "good.png").exists());
+    assertFalse(new File(output, "bad.png").exists());
+  }
+
+  /**
+   * Method to write a small image of one color
+   * @param parent the directory to write in
+   * @param name the file name, its extension picks the format
+   * @param rgb packed 0xRRGGBB color
+   * @return the file written
+   */
+  private static File image(File parent, String name, int rgb) throws IOException {
+    parent.mkdirs();
+    BufferedImage image = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < 8; y++) {
+      for (int x = 0; x < 8; x++) {
+        image.setRGB(x, y, rgb);
+      }
+    }
+    File file = new File(parent, name);
+    ImageIO.write(image, name.substring(name.lastIndexOf('.') + 1), file);
+    return file;
+  }
+}
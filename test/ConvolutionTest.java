@@ -0,0 +1,43 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of Convolution
+ */
+
+public class ConvolutionTest {
+
+  @Test
+  public void boxLeavesAConstantImageUnchanged() {
+    // radius 1 runs the full kernel, radius 3 the two passes
+    assertUnchanged(Convolution.box(1));
+    assertUnchanged(Convolution.box(3));
+  }
+
+  @Test
+  public void gaussianLeavesAConstantImageUnchanged() {
+    assertUnchanged(Convolution.gaussian(1));
+    assertUnchanged(Convolution.gaussian(4));
+  }
+
+  /**
+   * Method to check that a kernel does not change flat images, with
+   * every edge mode
+   * @param convolution the kernel
+   */
+  private static void assertUnchanged(Convolution convolution) {
+    int width = 67;
+    int height = 41;
+    for (int rgb : new int[] {0x646464, 0x000000, 0xFFFFFF, 0x0180FE}) {
+      int[] pixels = new int[width * height];
+      Arrays.fill(pixels, rgb);
+      for (Convolution.EdgeMode mode : Convolution.EdgeMode.values()) {
+        convolution.setEdgeMode(mode);
+        assertArrayEquals(pixels, convolution.apply(pixels, width, height),
+                          Integer.toHexString(rgb) + " " + mode);
+      }
+    }
+  }
+}
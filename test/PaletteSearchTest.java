@@ -0,0 +1,172 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the palette searches against a linear scan
+ */
+
+public class PaletteSearchTest {
+
+  /** palette sizes: one entry, just past a scan, and tree and SIMD sizes */
+  private static final int[] SIZES = {1, 17, 64, 600};
+
+  @Test
+  public void kdTreeFindsTheNearestAndSecondNearest() {
+    for (int size : SIZES) {
+      int[] palette = palette(size, size);
+      KdTreePaletteSearch tree = new KdTreePaletteSearch(palette);
+      for (int rgb : queries(palette, size)) {
+        String message = size + " colors, " + Integer.toHexString(rgb);
+        long two = tree.nearestTwo(rgb);
+        assertEquals(KMeans.nearest(rgb, palette), tree.nearest(rgb), message);
+        assertEquals(KMeans.nearest(rgb, palette), KdTreePaletteSearch.indexOf(two), message);
+        assertEquals(KMeans.distance(rgb, palette[KMeans.nearest(rgb, palette)]),
+                     KdTreePaletteSearch.distanceOf(two), message);
+        assertEquals(secondDistance(rgb, palette), KdTreePaletteSearch.secondDistanceOf(two), message);
+      }
+    }
+  }
+
+  @Test
+  public void vectorSearchFindsTheNearest() {
+    assumeTrue(VectorSupport.isAvailable(), "run with --add-modules jdk.incubator.vector");
+    for (int size : SIZES) {
+      int[] palette = palette(size, size);
+      PaletteSearch search = VectorSupport.create(palette);
+      assertNotNull(search);
+      for (int rgb : queries(palette, size)) {
+        assertEquals(KMeans.nearest(rgb, palette), search.nearest(rgb),
+                     size + " colors, " + Integer.toHexString(rgb));
+      }
+    }
+  }
+
+  @Test
+  public void inverseColorMapMatchesTheExactSearch() {
+    for (int size : SIZES) {
+      assertMapsExactly(palette(size, size), size + " colors");
+      assertMapsExactly(grays(size, size), size + " grays");
+    }
+  }
+
+  /**
+   * Method to check that refined maps of both grid sizes give the
+   * nearest entry for every gray and for the usual queries
+   * @param palette packed 0xRRGGBB palette colors
+   * @param name what the palette is, for messages
+   */
+  private static void assertMapsExactly(int[] palette, String name) {
+    int[] queries = queries(palette, palette.length);
+    for (int bits = 5; bits <= 6; bits++) {
+      InverseColorMap map = new InverseColorMap(palette, bits, true);
+      for (int level = 0; level < 256; level++) {
+        int gray = KMeans.pack(level, level, level);
+        assertEquals(KMeans.nearest(gray, palette), map.lookup(gray),
+                     name + ", " + bits + " bits, " + Integer.toHexString(gray));
+      }
+      for (int rgb : queries) {
+        assertEquals(KMeans.nearest(rgb, palette), map.lookup(rgb),
+                     name + ", " + bits + " bits, " + Integer.toHexString(rgb));
+      }
+    }
+  }
+
+  /**
+   * Class method to make a random palette with repeated entries and
+   * entries sitting exactly on either side of a color, so searches meet
+   * tied distances
+   * @param size number of entries
+   * @param seed random seed
+   * @return packed 0xRRGGBB palette colors
+   */
+  private static int[] palette(int size, long seed) {
+    Random random = new Random(seed);
+    int[] palette = new int[size];
+    for (int i = 0; i < size; i++) {
+      if (i > 0 && i % 7 == 0) {
+        palette[i] = palette[random.nextInt(i)];
+      } else if (i > 0 && i % 5 == 0) {
+        // this entry and the one before it are equally far from their midpoint
+        int red = 20 + random.nextInt(216);
+        int green = 20 + random.nextInt(216);
+        int blue = 20 + random.nextInt(216);
+        int dr = random.nextInt(41) - 20;
+        int dg = random.nextInt(41) - 20;
+        int db = random.nextInt(41) - 20;
+        palette[i - 1] = KMeans.pack(red - dr, green - dg, blue - db);
+        palette[i] = KMeans.pack(red + dr, green + dg, blue + db);
+      } else {
+        palette[i] = random.nextInt(1 << 24);
+      }
+    }
+    return palette;
+  }
+
+  /**
+   * Class method to make a random palette of grays, some repeated
+   * @param size number of entries
+   * @param seed random seed
+   * @return packed 0xRRGGBB palette colors
+   */
+  private static int[] grays(int size, long seed) {
+    Random random = new Random(seed);
+    int[] palette = new int[size];
+    for (int i = 0; i < size; i++) {
+      int level = random.nextInt(256);
+      palette[i] = i > 0 && i % 7 == 0 ? palette[random.nextInt(i)] : KMeans.pack(level, level, level);
+    }
+    return palette;
+  }
+
+  /**
+   * Class method to get colors to look up: random colors, the corners of
+   * the cube (farthest from the padding of a SIMD search), every palette
+   * entry, and the midpoints of neighboring entries, which are tied for
+   * the pairs made by palette
+   * @param palette packed 0xRRGGBB palette colors
+   * @param seed random seed
+   * @return packed 0xRRGGBB colors
+   */
+  private static int[] queries(int[] palette, long seed) {
+    Random random = new Random(seed);
+    int[] queries = new int[20000 + 8 + 2 * palette.length];
+    int n = 0;
+    while (n < 20000) {
+      queries[n++] = random.nextInt(1 << 24);
+    }
+    for (int corner = 0; corner < 8; corner++) {
+      queries[n++] = ((corner & 4) != 0 ? 0xFF0000 : 0) | ((corner & 2) != 0 ? 0xFF00 : 0)
+        | ((corner & 1) != 0 ? 0xFF : 0);
+    }
+    for (int i = 0; i < palette.length; i++) {
+      int other = palette[i == 0 ? 0 : i - 1];
+      queries[n++] = palette[i];
+      queries[n++] = KMeans.pack((((palette[i] >> 16) & 0xFF) + ((other >> 16) & 0xFF)) / 2,
+                                 (((palette[i] >> 8) & 0xFF) + ((other >> 8) & 0xFF)) / 2,
+                                 ((palette[i] & 0xFF) + (other & 0xFF)) / 2);
+    }
+    return queries;
+  }
+
+  /**
+   * Class method to find the second smallest distance by a linear scan,
+   * counting a repeated closest entry as the second
+   * @param rgb packed 0xRRGGBB color
+   * @param palette packed palette colors
+   * @return the squared distance, NO_SECOND for a single entry
+   */
+  private static int secondDistance(int rgb, int[] palette) {
+    int nearest = KMeans.nearest(rgb, palette);
+    int second = KdTreePaletteSearch.NO_SECOND;
+    for (int i = 0; i < palette.length; i++) {
+      if (i != nearest) {
+        second = Math.min(second, KMeans.distance(rgb, palette[i]));
+      }
+    }
+    return second;
+  }
+}
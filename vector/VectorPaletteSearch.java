@@ -0,0 +1,86 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A class that finds the closest palette entry with SIMD.  The palette is
+ * stored as structure-of-arrays int lanes (all the reds, then greens,
+ * then blues) and the squared distance to a whole vector of entries is
+ * computed at once with integer arithmetic, keeping the smallest distance
+ * and its index per lane.  The lanes are combined at the end so ties go
+ * to the lowest index, the same as a linear scan.
+ *
+ * This class needs the jdk.incubator.vector module, so it lives in its
+ * own source directory, vector/, that is compiled (and run) with
+ * --add-modules jdk.incubator.vector after the rest of the project.
+ * Nothing refers to it directly; PaletteSearch loads it by reflection
+ * only when the module is present.
+ */
+
+public class VectorPaletteSearch implements PaletteSearch {
+
+  /** the widest int vector the CPU has */
+  private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+  /** channel value of the padding entries, farther than any color */
+  private static final int FAR = 1 << 12;
+
+  /** channels of the palette, padded to a whole number of vectors */
+  private final int[] red;
+  private final int[] green;
+  private final int[] blue;
+
+  /** lane numbers 0, 1, 2, ... used to build the index vectors */
+  private final IntVector lanes;
+
+  ///////////////////// constructors ////////////////////////
+
+  /**
+   * Constructor that lays out the palette in vector lanes
+   * @param palette packed 0xRRGGBB palette colors
+   */
+  public VectorPaletteSearch(int[] palette) {
+    int length = SPECIES.loopBound(palette.length + SPECIES.length() - 1);
+    red = new int[length];
+    green = new int[length];
+    blue = new int[length];
+    for (int i = 0; i < length; i++) {
+      int rgb = i < palette.length ? palette[i] : -1;
+      red[i] = rgb < 0 ? FAR : (rgb >> 16) & 0xFF;
+      green[i] = rgb < 0 ? FAR : (rgb >> 8) & 0xFF;
+      blue[i] = rgb < 0 ? FAR : rgb & 0xFF;
+    }
+    lanes = IntVector.zero(SPECIES).addIndex(1);
+  }
+
+  ////////////////////// methods ///////////////////////////////////////
+
+  /**
+   * Method to find the palette entry closest to a color
+   * @param rgb packed 0xRRGGBB color
+   * @return index of the closest palette entry, lowest on ties
+   */
+  public int nearest(int rgb) {
+    IntVector r = IntVector.broadcast(SPECIES, (rgb >> 16) & 0xFF);
+    IntVector g = IntVector.broadcast(SPECIES, (rgb >> 8) & 0xFF);
+    IntVector b = IntVector.broadcast(SPECIES, rgb & 0xFF);
+    IntVector best = IntVector.broadcast(SPECIES, Integer.MAX_VALUE);
+    IntVector bestIndex = IntVector.zero(SPECIES);
+
+    for (int i = 0; i < red.length; i += SPECIES.length()) {
+      IntVector dr = IntVector.fromArray(SPECIES, red, i).sub(r);
+      IntVector dg = IntVector.fromArray(SPECIES, green, i).sub(g);
+      IntVector db = IntVector.fromArray(SPECIES, blue, i).sub(b);
+      IntVector dist = dr.mul(dr).add(dg.mul(dg)).add(db.mul(db));
+      // strictly less keeps the earlier entry of each lane on ties
+      VectorMask<Integer> closer = dist.lt(best);
+      best = best.blend(dist, closer);
+      bestIndex = bestIndex.blend(lanes.add(i), closer);
+    }
+
+    int min = best.reduceLanes(VectorOperators.MIN);
+    return bestIndex.blend(Integer.MAX_VALUE, best.compare(VectorOperators.NE, min))
+      .reduceLanes(VectorOperators.MIN);
+  }
+}